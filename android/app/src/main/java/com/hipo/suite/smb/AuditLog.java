@@ -0,0 +1,184 @@
+package com.hipo.suite.smb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One audit_access_log.csv entry (timestamp,name,motivo) per committed check-in,
+ * appended to the share in batches so audit coverage does not cost the check-in
+ * write any extra round trips. The entries of each committed write are first
+ * appended to their own WriteJournal, so they survive process death and a share
+ * that stays unreachable; journal records are acknowledged once their batch is on
+ * the share. Entries are grouped per log file and credentials.
+ */
+final class AuditLog {
+    static final String FILE_NAME = "audit_access_log.csv";
+    static final String HEADER = "timestamp,name,motivo";
+    static final int DEFAULT_BATCH_ROWS = 50;
+    // column positions in a check-in row (see XlsxAppender.COLUMNS)
+    private static final int NAME_COLUMN = 1;
+    private static final int MOTIVO_COLUMN = 7;
+
+    /** Entries for one audit file, written with a single appending handle. */
+    static final class Batch {
+        final SmbTarget target;
+        final String user;
+        final String pass;
+        final List<String> lines = new ArrayList<>();
+        // journal records the lines came from
+        final List<Long> seqs = new ArrayList<>();
+
+        Batch(SmbTarget target, String user, String pass) {
+            this.target = target;
+            this.user = user;
+            this.pass = pass;
+        }
+
+        String key() {
+            return target + "|" + user + "|" + pass;
+        }
+    }
+
+    private final WriteJournal journal;
+    private final int batchRows;
+    // journal records handed to a flush that has not finished yet
+    private final Set<Long> inFlight = new HashSet<>();
+    private int pending;
+
+    AuditLog(WriteJournal journal) throws IOException {
+        this(journal, DEFAULT_BATCH_ROWS);
+    }
+
+    AuditLog(WriteJournal journal, int batchRows) throws IOException {
+        this.journal = journal;
+        this.batchRows = batchRows;
+        for (WriteJournal.Record r : journal.pending()) {
+            try {
+                pending += decode(r.payload).lines.size();
+            } catch (IOException e) {
+                // dropped by the next drain
+            }
+        }
+    }
+
+    /**
+     * Durably record one entry per row written to dataTarget. Returns true when
+     * a full batch is waiting and should be flushed without waiting for the timer.
+     */
+    synchronized boolean record(SmbTarget dataTarget, String user, String pass, List<CsvCodec.Row> rows) throws IOException {
+        SmbTarget auditTarget = SmbTarget.parse("smb://" + dataTarget.host + "/" + dataTarget.share + "/" + dataTarget.sibling(FILE_NAME));
+        Batch b = new Batch(auditTarget, user, pass);
+        String ts = Instant.now().toString();
+        for (CsvCodec.Row row : rows) {
+            String[] cols = row.fields;
+            b.lines.add(ts + "," + CsvCodec.escape(column(cols, NAME_COLUMN)) + "," + CsvCodec.escape(column(cols, MOTIVO_COLUMN)));
+        }
+        journal.append(encode(b));
+        pending += b.lines.size();
+        return pending >= batchRows;
+    }
+
+    /**
+     * Group journaled entries that are not already being flushed into one batch per
+     * audit file. Every batch must be passed to {@link #done} once its write ends.
+     */
+    synchronized List<Batch> drain() throws IOException {
+        Map<String, Batch> open = new LinkedHashMap<>();
+        List<Long> unreadable = new ArrayList<>();
+        for (WriteJournal.Record r : journal.pending()) {
+            if (inFlight.contains(r.seq)) continue;
+            Batch entry;
+            try {
+                entry = decode(r.payload);
+            } catch (IOException e) {
+                unreadable.add(r.seq);
+                continue;
+            }
+            Batch b = open.get(entry.key());
+            if (b == null) {
+                b = new Batch(entry.target, entry.user, entry.pass);
+                open.put(b.key(), b);
+            }
+            b.lines.addAll(entry.lines);
+            b.seqs.add(r.seq);
+            inFlight.add(r.seq);
+        }
+        journal.ack(unreadable);
+        return new ArrayList<>(open.values());
+    }
+
+    // Drop a written batch from the journal; a failed one is picked up again by the next drain
+    synchronized void done(Batch b, boolean written) throws IOException {
+        inFlight.removeAll(b.seqs);
+        if (written) {
+            journal.ack(b.seqs);
+            pending -= b.lines.size();
+        }
+    }
+
+    synchronized int pending() {
+        return pending;
+    }
+
+    synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Append a batch to its audit file, starting with the header when the opened file
+     * is empty (new, or deleted or rotated since the last write).
+     */
+    static void write(ShareFs disk, Batch b) throws Exception {
+        try (ShareFs.Handle f = disk.open(b.target.relPath, ShareFs.Mode.APPEND);
+             OutputStream os = f.getOutputStream(true)) {
+            StringBuilder sb = new StringBuilder();
+            if (f.size() == 0) {
+                sb.append(HEADER).append('\n');
+            }
+            for (String line : b.lines) {
+                sb.append(line).append('\n');
+            }
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            os.flush();
+        }
+    }
+
+    // Journal record: audit url, user, pass, entry count, entries
+    private static byte[] encode(Batch b) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(b.target.toString());
+            out.writeUTF(b.user);
+            out.writeUTF(b.pass);
+            out.writeInt(b.lines.size());
+            for (String line : b.lines) out.writeUTF(line);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Batch decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            Batch b = new Batch(SmbTarget.parse(in.readUTF()), in.readUTF(), in.readUTF());
+            int n = in.readInt();
+            if (n < 0) throw new IOException("bad entry count " + n);
+            for (int i = 0; i < n; i++) b.lines.add(in.readUTF());
+            return b;
+        }
+    }
+
+    private static String column(String[] cols, int i) {
+        return i < cols.length ? cols[i] : "";
+    }
+}
@@ -0,0 +1,193 @@
+package com.hipo.suite.smb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RFC 4180 encoding of check-in rows straight into a reusable UTF-8 byte buffer.
+ * Fields containing a comma, quote, CR or LF are quoted, with quotes doubled, so
+ * a name like "Perez, Ana" stays in one column. Records end with '\n' like the
+ * existing files do. Each writer thread keeps one pooled buffer, so steady-state
+ * encoding allocates nothing per row: no joined line, no String.getBytes copy.
+ * {@link #fromLine} turns legacy pre-joined lines (as sent by older app
+ * builds, deploy.ts and still found in the journal) into rows; a line that
+ * would not survive a parse/encode round trip keeps its original text in
+ * {@link Row#line} and is written byte for byte as before.
+ */
+final class CsvCodec {
+    static final int INITIAL_BUFFER_BYTES = 8 * 1024;
+    // buffers that grew past this are not kept in the pool
+    static final int MAX_POOLED_BYTES = 1024 * 1024;
+
+    private static final ThreadLocal<Buffer> POOL = new ThreadLocal<>();
+
+    private CsvCodec() {}
+
+    /** One check-in row: its field values and, for a verbatim legacy line, the line itself. */
+    static final class Row {
+        final String[] fields;
+        // written instead of the encoded fields when set
+        final String line;
+
+        private Row(String[] fields, String line) {
+            this.fields = fields;
+            this.line = line;
+        }
+
+        static Row of(String... fields) {
+            return new Row(fields, null);
+        }
+
+        boolean verbatim() {
+            return line != null;
+        }
+    }
+
+    /** Growable byte buffer; valid bytes are data[0, length). */
+    static final class Buffer {
+        byte[] data;
+        int length;
+
+        Buffer(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void put(int b) {
+            if (length == data.length) grow(1);
+            data[length++] = (byte) b;
+        }
+
+        private void grow(int extra) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+        }
+    }
+
+    /** Take this thread's pooled buffer (empty); hand it back with {@link #release}. */
+    static Buffer acquire() {
+        Buffer b = POOL.get();
+        if (b == null) return new Buffer(INITIAL_BUFFER_BYTES);
+        POOL.remove();
+        b.length = 0;
+        return b;
+    }
+
+    static void release(Buffer b) {
+        if (b != null && b.data.length <= MAX_POOLED_BYTES) POOL.set(b);
+    }
+
+    /** Append a row: its verbatim line as is, otherwise its encoded fields; then '\n'. */
+    static void encodeRow(Row row, Buffer out) {
+        if (row.verbatim()) {
+            putUtf8(row.line, false, out);
+            out.put('\n');
+            return;
+        }
+        encodeRow(row.fields, out);
+    }
+
+    /** Append one record: fields separated by ',', quoted where needed, then '\n'. */
+    static void encodeRow(String[] fields, Buffer out) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) out.put(',');
+            encodeField(fields[i], out);
+        }
+        out.put('\n');
+    }
+
+    static void encodeField(String v, Buffer out) {
+        if (v == null || v.isEmpty()) return;
+        boolean quote = needsQuotes(v);
+        if (quote) out.put('"');
+        putUtf8(v, quote, out);
+        if (quote) out.put('"');
+    }
+
+    // UTF-8 encode v into out, doubling quotes when inside a quoted field
+    private static void putUtf8(String v, boolean doubleQuotes, Buffer out) {
+        int n = v.length();
+        for (int i = 0; i < n; i++) {
+            char c = v.charAt(i);
+            if (c == '"' && doubleQuotes) {
+                out.put('"');
+                out.put('"');
+            } else if (c < 0x80) {
+                out.put(c);
+            } else if (c < 0x800) {
+                out.put(0xC0 | (c >> 6));
+                out.put(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(v.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, v.charAt(++i));
+                out.put(0xF0 | (cp >> 18));
+                out.put(0x80 | ((cp >> 12) & 0x3F));
+                out.put(0x80 | ((cp >> 6) & 0x3F));
+                out.put(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate: same replacement String.getBytes(UTF_8) uses
+                out.put('?');
+            } else {
+                out.put(0xE0 | (c >> 12));
+                out.put(0x80 | ((c >> 6) & 0x3F));
+                out.put(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /** Row for a legacy pre-joined line: its fields, plus the line itself when re-encoding would change it. */
+    static Row fromLine(String line) {
+        String[] fields = parseLine(line);
+        StringBuilder canonical = new StringBuilder(line.length());
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) canonical.append(',');
+            canonical.append(escape(fields[i]));
+        }
+        return new Row(fields, line.contentEquals(canonical) ? null : line);
+    }
+
+    /** Field as it appears in a CSV record (quoted when needed), for callers that build strings. */
+    static String escape(String v) {
+        if (v == null) return "";
+        if (!needsQuotes(v)) return v;
+        return '"' + v.replace("\"", "\"\"") + '"';
+    }
+
+    private static boolean needsQuotes(String v) {
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') return true;
+        }
+        return false;
+    }
+
+    /** Split one CSV record into fields, honouring quoted fields and doubled quotes. */
+    static String[] parseLine(String line) {
+        List<String> out = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int n = line.length();
+        for (int i = 0; i < n; i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < n && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                out.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        out.add(field.toString());
+        return out.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,99 @@
+package com.hipo.suite.smb;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * HIPOSENC payload encryption. The on-disk layouts are read by bundled/decrypt.js:
+ * v1 = magic(8) | 0x01 | iv(12) | ciphertext+tag
+ * v2 = magic(8) | 0x02 | salt(16) | iv(12) | ciphertext+tag
+ * Cipher and SecureRandom instances are reused instead of being built per row.
+ */
+final class HiposCrypto {
+    static final byte[] MAGIC = "HIPOSENC".getBytes(StandardCharsets.US_ASCII);
+    static final int PBKDF2_ITERATIONS = 100000;
+    static final int SALT_BYTES = 16;
+    static final int IV_BYTES = 12;
+    static final int TAG_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Cipher is not thread-safe; one per writer thread. Keystore keys get their own
+    // instance because the provider is fixed on the first init.
+    private static final ThreadLocal<Cipher> SOFTWARE_GCM = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> KEYSTORE_GCM = new ThreadLocal<>();
+
+    private HiposCrypto() {}
+
+    static byte[] randomBytes(int n) {
+        byte[] b = new byte[n];
+        RANDOM.nextBytes(b);
+        return b;
+    }
+
+    // Derive raw AES-256 key bytes from passphrase using PBKDF2-HMAC-SHA256
+    static byte[] deriveKeyBytes(String passphrase, byte[] salt) throws GeneralSecurityException {
+        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, PBKDF2_ITERATIONS, 256);
+        try {
+            return skf.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    static Cipher gcm(boolean keystoreKey) throws GeneralSecurityException {
+        ThreadLocal<Cipher> holder = keystoreKey ? KEYSTORE_GCM : SOFTWARE_GCM;
+        Cipher cipher = holder.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            holder.set(cipher);
+        }
+        return cipher;
+    }
+
+    // v1: key lives in the Android KeyStore
+    static byte[] encryptAesGcm(SecretKey key, byte[] plain) throws GeneralSecurityException {
+        return encryptAesGcm(key, plain, 0, plain.length);
+    }
+
+    static byte[] encryptAesGcm(SecretKey key, byte[] plain, int off, int len) throws GeneralSecurityException {
+        Cipher cipher = gcm(true);
+        // KeyStore keys require randomized encryption and refuse a caller IV; the provider picks it
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] iv = cipher.getIV();
+        byte[] cipherText = cipher.doFinal(plain, off, len);
+        byte[] out = new byte[MAGIC.length + 1 + iv.length + cipherText.length];
+        int pos = 0;
+        System.arraycopy(MAGIC, 0, out, pos, MAGIC.length); pos += MAGIC.length;
+        out[pos++] = 0x01;
+        System.arraycopy(iv, 0, out, pos, iv.length); pos += iv.length;
+        System.arraycopy(cipherText, 0, out, pos, cipherText.length);
+        return out;
+    }
+
+    // v2: passphrase-derived key, salt stored in the header
+    static byte[] encryptAesGcmWithSalt(SecretKey key, byte[] plain, byte[] salt) throws GeneralSecurityException {
+        return encryptAesGcmWithSalt(key, plain, 0, plain.length, salt);
+    }
+
+    static byte[] encryptAesGcmWithSalt(SecretKey key, byte[] plain, int off, int len, byte[] salt) throws GeneralSecurityException {
+        byte[] iv = randomBytes(IV_BYTES);
+        Cipher cipher = gcm(false);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        byte[] cipherText = cipher.doFinal(plain, off, len);
+        byte[] out = new byte[MAGIC.length + 1 + salt.length + iv.length + cipherText.length];
+        int pos = 0;
+        System.arraycopy(MAGIC, 0, out, pos, MAGIC.length); pos += MAGIC.length;
+        out[pos++] = 0x02;
+        System.arraycopy(salt, 0, out, pos, salt.length); pos += salt.length;
+        System.arraycopy(iv, 0, out, pos, iv.length); pos += iv.length;
+        System.arraycopy(cipherText, 0, out, pos, cipherText.length);
+        return out;
+    }
+}
@@ -0,0 +1,418 @@
+package com.hipo.suite.smb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * HIPOSENC v3: a chunked, seekable container for encrypted CSV.
+ *
+ * <pre>
+ * header  magic(8) | 0x03 | flags(1) | reserved(2) | frameBytes(4) | salt(16)     = 32 bytes
+ * frame   cipherLen(4) | iv(12) | ciphertext+tag(cipherLen)                        repeated
+ * footer  dataEnd(8) | frameCount(4) | "HIPOIDX3"(8)                               = 20 bytes
+ * </pre>
+ *
+ * Every frame holds exactly frameBytes of plaintext except the last, so frame i
+ * starts at a fixed offset and readers can decrypt any range of frames without an
+ * index (in parallel if wanted). Frames are sealed with AES-256-GCM using the header
+ * and their frame number as AAD, so they cannot be reordered or moved between files.
+ * An append decrypts only the last, partly filled frame, reseals it together with the
+ * new plaintext and writes a new footer: its cost is one frame plus the new data,
+ * whatever the file size. Before that frame is overwritten, a copy of it goes past the
+ * new end under a "HIPOTAL3" footer (copyOffset(8) | frameCount(4)), so an append
+ * torn by a crash leaves the container as it was. If the footer itself is torn off,
+ * readers fall back to a sequential scan of the frames.
+ *
+ * Containers written without FLAG_FIXED_FRAMES have frames of any size and a frame
+ * index (frameOffset(8) | plainLen(4) per frame) before the footer, which then holds
+ * the index offset. They are still read, and appended to by rewriting the index.
+ */
+final class HiposEncV3 {
+    static final byte VERSION = 0x03;
+    static final byte FLAG_PASSPHRASE = 0x01;
+    static final byte FLAG_FIXED_FRAMES = 0x02;
+    static final int HEADER_BYTES = 32;
+    static final int FRAME_HEADER_BYTES = 4 + HiposCrypto.IV_BYTES;
+    static final int TAG_BYTES = HiposCrypto.TAG_BITS / 8;
+    static final int INDEX_ENTRY_BYTES = 12;
+    static final int FOOTER_BYTES = 20;
+    static final int DEFAULT_FRAME_BYTES = 4096;
+    static final byte[] INDEX_MAGIC = "HIPOIDX3".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] TAIL_MAGIC = "HIPOTAL3".getBytes(StandardCharsets.US_ASCII);
+
+    private HiposEncV3() {}
+
+    /** Random-access byte store holding one container (an SMB file, a local file, ...). */
+    interface Store {
+        long size() throws IOException;
+        void read(byte[] buf, long offset) throws IOException;
+        void write(byte[] buf, long offset) throws IOException;
+        void setLength(long length) throws IOException;
+    }
+
+    /** Supplies the AES key for a container; salt is null for KeyStore-mode files. */
+    interface KeySource {
+        SecretKey key(byte[] salt) throws Exception;
+    }
+
+    static final class Header {
+        final byte flags;
+        final int frameBytes;
+        final byte[] salt;
+        final byte[] raw;
+
+        Header(byte flags, int frameBytes, byte[] salt) {
+            this.flags = flags;
+            this.frameBytes = frameBytes;
+            this.salt = salt;
+            ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES);
+            b.put(HiposCrypto.MAGIC).put(VERSION).put(flags).putShort((short) 0).putInt(frameBytes).put(salt);
+            this.raw = b.array();
+        }
+
+        static Header parse(byte[] raw) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(raw);
+            byte[] magic = new byte[HiposCrypto.MAGIC.length];
+            b.get(magic);
+            if (!Arrays.equals(magic, HiposCrypto.MAGIC) || b.get() != VERSION) {
+                throw new IOException("not a HIPOSENC v3 container");
+            }
+            byte flags = b.get();
+            b.getShort();
+            int frameBytes = b.getInt();
+            byte[] salt = new byte[HiposCrypto.SALT_BYTES];
+            b.get(salt);
+            if (frameBytes <= 0) throw new IOException("invalid frame size " + frameBytes);
+            return new Header(flags, frameBytes, salt);
+        }
+
+        boolean passphrase() {
+            return (flags & FLAG_PASSPHRASE) != 0;
+        }
+
+        boolean fixedFrames() {
+            return (flags & FLAG_FIXED_FRAMES) != 0;
+        }
+
+        // Where frame i starts when every frame before it is full
+        long frameOffset(long i) {
+            return HEADER_BYTES + i * (FRAME_HEADER_BYTES + frameBytes + TAG_BYTES);
+        }
+    }
+
+    static final class FrameRef {
+        final long offset;
+        final int plainLength;
+
+        FrameRef(long offset, int plainLength) {
+            this.offset = offset;
+            this.plainLength = plainLength;
+        }
+
+        int cipherLength() {
+            return plainLength + TAG_BYTES;
+        }
+    }
+
+    static int append(Store store, byte[] plain, byte[] newFileSalt, KeySource keys, int frameBytes) throws Exception {
+        return append(store, plain, plain.length, newFileSalt, keys, frameBytes);
+    }
+
+    /**
+     * Append plain[0, plainLength) to the container, creating the header when the store
+     * is empty. newFileSalt selects passphrase mode for a new file (null = KeyStore mode).
+     * Returns the number of frames written, including a resealed last frame.
+     */
+    static int append(Store store, byte[] plain, int plainLength, byte[] newFileSalt, KeySource keys, int frameBytes) throws Exception {
+        if (store.size() == 0) {
+            byte flags = newFileSalt != null ? (byte) (FLAG_PASSPHRASE | FLAG_FIXED_FRAMES) : FLAG_FIXED_FRAMES;
+            Header header = new Header(flags, frameBytes,
+                    newFileSalt != null ? newFileSalt : new byte[HiposCrypto.SALT_BYTES]);
+            store.write(header.raw, 0);
+            return seal(store, header, keys, 0, plain, plainLength, null);
+        }
+        Reader reader = new Reader(store, keys);
+        if (!reader.header.fixedFrames()) {
+            return appendIndexed(store, reader, plain, plainLength, keys);
+        }
+        int n = reader.frames.size();
+        if (!reader.indexed && n > 1) {
+            // a scan may end on a frame torn by a crash; it is dropped only when an
+            // earlier frame proves the key is right
+            try {
+                reader.frame(n - 1);
+            } catch (AEADBadTagException e) {
+                reader.frame(0);
+                n--;
+            }
+        }
+        if (n == 0 || reader.frames.get(n - 1).plainLength == reader.header.frameBytes) {
+            return seal(store, reader.header, keys, n, plain, plainLength, null);
+        }
+        // the last frame has room: reseal it with the new plaintext instead of starting another
+        byte[] lastRaw = reader.raw(n - 1);
+        byte[] last = reader.open(n - 1, lastRaw);
+        byte[] joined = Arrays.copyOf(last, last.length + plainLength);
+        System.arraycopy(plain, 0, joined, last.length, plainLength);
+        return seal(store, reader.header, keys, n - 1, joined, joined.length, lastRaw);
+    }
+
+    /**
+     * Seal plain[0, plainLength) as frames first, first + 1, ... at their fixed offsets and
+     * close the container with a footer. replaced is the current sealed frame first when it
+     * gets overwritten; it is saved past the new end until the new footer is in place.
+     */
+    private static int seal(Store store, Header header, KeySource keys, int first, byte[] plain, int plainLength,
+                            byte[] replaced) throws Exception {
+        SecretKey key = keys.key(header.passphrase() ? header.salt : null);
+        ByteBuffer out = ByteBuffer.allocate(framedSize(plainLength, header.frameBytes));
+        int next = sealFrames(header, key, first, plain, plainLength, out);
+        long writeAt = header.frameOffset(first);
+        long end = writeAt + out.position();
+        if (replaced != null) {
+            long copyAt = Math.max(store.size(), end + FOOTER_BYTES);
+            ByteBuffer copy = ByteBuffer.allocate(replaced.length + FOOTER_BYTES);
+            copy.put(replaced).putLong(copyAt).putInt(first + 1).put(TAIL_MAGIC);
+            store.write(copy.array(), copyAt);
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+        footer.putLong(end).putInt(next).put(INDEX_MAGIC);
+        store.write(Arrays.copyOf(out.array(), out.position()), writeAt);
+        store.write(footer.array(), end);
+        store.setLength(end + FOOTER_BYTES);
+        return next - first;
+    }
+
+    // Containers without fixed frames: new frames go over the old index, which is rewritten whole
+    private static int appendIndexed(Store store, Reader reader, byte[] plain, int plainLength, KeySource keys) throws Exception {
+        Header header = reader.header;
+        List<FrameRef> frames = new ArrayList<>(reader.frames);
+        long writeAt = frames.isEmpty() ? HEADER_BYTES : frames.get(frames.size() - 1).offset
+                + FRAME_HEADER_BYTES + frames.get(frames.size() - 1).cipherLength();
+        SecretKey key = keys.key(header.passphrase() ? header.salt : null);
+        ByteBuffer out = ByteBuffer.allocate(framedSize(plainLength, header.frameBytes));
+        int first = frames.size();
+        int next = sealFrames(header, key, first, plain, plainLength, out);
+        for (int i = first, pos = 0; i < next; i++, pos += header.frameBytes) {
+            frames.add(new FrameRef(writeAt + (long) (i - first) * (FRAME_HEADER_BYTES + header.frameBytes + TAG_BYTES),
+                    Math.min(header.frameBytes, plainLength - pos)));
+        }
+        long indexOffset = writeAt + out.position();
+        ByteBuffer tail = ByteBuffer.allocate(frames.size() * INDEX_ENTRY_BYTES + FOOTER_BYTES);
+        for (FrameRef f : frames) {
+            tail.putLong(f.offset).putInt(f.plainLength);
+        }
+        tail.putLong(indexOffset).putInt(frames.size()).put(INDEX_MAGIC);
+
+        store.write(Arrays.copyOf(out.array(), out.position()), writeAt);
+        store.write(tail.array(), indexOffset);
+        store.setLength(indexOffset + tail.capacity());
+        return next - first;
+    }
+
+    // Seal plain into frames numbered from first into out; returns the number after the last one
+    private static int sealFrames(Header header, SecretKey key, int first, byte[] plain, int plainLength,
+                                  ByteBuffer out) throws Exception {
+        Cipher cipher = HiposCrypto.gcm(!header.passphrase());
+        int frame = first;
+        for (int pos = 0; pos < plainLength; pos += header.frameBytes) {
+            int len = Math.min(header.frameBytes, plainLength - pos);
+            // the provider picks the IV: Android KeyStore keys refuse one from the caller
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            byte[] iv = cipher.getIV();
+            if (iv == null || iv.length != HiposCrypto.IV_BYTES) {
+                throw new IllegalStateException("unexpected GCM IV length");
+            }
+            cipher.updateAAD(aad(header, frame));
+            byte[] ct = cipher.doFinal(plain, pos, len);
+            out.putInt(ct.length).put(iv).put(ct);
+            frame++;
+        }
+        return frame;
+    }
+
+    private static int framedSize(int plainLength, int frameBytes) {
+        int frames = (plainLength + frameBytes - 1) / frameBytes;
+        return plainLength + frames * (FRAME_HEADER_BYTES + TAG_BYTES);
+    }
+
+    private static byte[] aad(Header header, long frameNumber) {
+        return ByteBuffer.allocate(HEADER_BYTES + 8).put(header.raw).putLong(frameNumber).array();
+    }
+
+    /** Decoder and verifier for v3 containers. */
+    static final class Reader {
+        final Header header;
+        final List<FrameRef> frames;
+        // false when the footer was missing or damaged and frames were found by scanning
+        final boolean indexed;
+        private final Store store;
+        private final KeySource keys;
+
+        Reader(Store store, KeySource keys) throws IOException {
+            this.store = store;
+            this.keys = keys;
+            long size = store.size();
+            if (size < HEADER_BYTES) throw new IOException("container too short");
+            byte[] raw = new byte[HEADER_BYTES];
+            store.read(raw, 0);
+            this.header = Header.parse(raw);
+            List<FrameRef> fromIndex = header.fixedFrames() ? readFooter(size) : readIndex(size);
+            this.indexed = fromIndex != null;
+            this.frames = indexed ? fromIndex : scan(size);
+        }
+
+        private List<FrameRef> readIndex(long size) throws IOException {
+            if (size < HEADER_BYTES + FOOTER_BYTES) return null;
+            byte[] footer = new byte[FOOTER_BYTES];
+            store.read(footer, size - FOOTER_BYTES);
+            ByteBuffer f = ByteBuffer.wrap(footer);
+            long indexOffset = f.getLong();
+            int count = f.getInt();
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            f.get(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC) || count < 0
+                    || indexOffset < HEADER_BYTES
+                    || indexOffset + (long) count * INDEX_ENTRY_BYTES + FOOTER_BYTES != size) {
+                return null;
+            }
+            byte[] idx = new byte[count * INDEX_ENTRY_BYTES];
+            store.read(idx, indexOffset);
+            ByteBuffer b = ByteBuffer.wrap(idx);
+            List<FrameRef> out = new ArrayList<>(count);
+            long expected = HEADER_BYTES;
+            for (int i = 0; i < count; i++) {
+                FrameRef ref = new FrameRef(b.getLong(), b.getInt());
+                if (ref.offset != expected || ref.plainLength < 0 || ref.plainLength > header.frameBytes) return null;
+                expected = ref.offset + FRAME_HEADER_BYTES + ref.cipherLength();
+                out.add(ref);
+            }
+            return expected == indexOffset ? out : null;
+        }
+
+        // Fixed frames: offsets follow from the footer's frame count, so only the last frame is read
+        private List<FrameRef> readFooter(long size) throws IOException {
+            if (size < HEADER_BYTES + FOOTER_BYTES) return null;
+            byte[] footer = new byte[FOOTER_BYTES];
+            store.read(footer, size - FOOTER_BYTES);
+            ByteBuffer f = ByteBuffer.wrap(footer);
+            long at = f.getLong();
+            int count = f.getInt();
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            f.get(magic);
+            // a tail footer means an append was interrupted: the last frame is the saved copy at 'at'
+            boolean interrupted = Arrays.equals(magic, TAIL_MAGIC);
+            if (!interrupted && !Arrays.equals(magic, INDEX_MAGIC) || count < 0) return null;
+            long dataEnd = size - FOOTER_BYTES;
+            if (count == 0) {
+                return !interrupted && at == HEADER_BYTES && dataEnd == HEADER_BYTES ? new ArrayList<>() : null;
+            }
+            long lastAt = interrupted ? at : header.frameOffset(count - 1);
+            if (header.frameOffset(count - 1) > dataEnd || lastAt < HEADER_BYTES
+                    || lastAt + FRAME_HEADER_BYTES + TAG_BYTES > dataEnd) {
+                return null;
+            }
+            byte[] len = new byte[4];
+            store.read(len, lastAt);
+            int cipherLen = ByteBuffer.wrap(len).getInt();
+            if (cipherLen < TAG_BYTES || cipherLen > header.frameBytes + TAG_BYTES
+                    || lastAt + FRAME_HEADER_BYTES + cipherLen != dataEnd
+                    || !interrupted && at != dataEnd) {
+                return null;
+            }
+            List<FrameRef> out = new ArrayList<>(count);
+            for (int i = 0; i < count - 1; i++) {
+                out.add(new FrameRef(header.frameOffset(i), header.frameBytes));
+            }
+            out.add(new FrameRef(lastAt, cipherLen - TAG_BYTES));
+            return out;
+        }
+
+        // Walk frame headers from the start; stops at the first structurally invalid frame
+        private List<FrameRef> scan(long size) throws IOException {
+            List<FrameRef> out = new ArrayList<>();
+            long pos = HEADER_BYTES;
+            byte[] len = new byte[4];
+            while (pos + FRAME_HEADER_BYTES + TAG_BYTES <= size) {
+                store.read(len, pos);
+                int cipherLen = ByteBuffer.wrap(len).getInt();
+                if (cipherLen < TAG_BYTES || cipherLen > header.frameBytes + TAG_BYTES
+                        || pos + FRAME_HEADER_BYTES + cipherLen > size) {
+                    break;
+                }
+                out.add(new FrameRef(pos, cipherLen - TAG_BYTES));
+                pos += FRAME_HEADER_BYTES + cipherLen;
+                // with fixed frames only the last one can be partly filled
+                if (header.fixedFrames() && cipherLen - TAG_BYTES < header.frameBytes) break;
+            }
+            return out;
+        }
+
+        /** Decrypt and authenticate a single frame. */
+        byte[] frame(int i) throws Exception {
+            return open(i, raw(i));
+        }
+
+        // The sealed bytes of frame i: cipherLen | iv | ciphertext+tag
+        byte[] raw(int i) throws IOException {
+            FrameRef ref = frames.get(i);
+            byte[] buf = new byte[FRAME_HEADER_BYTES + ref.cipherLength()];
+            store.read(buf, ref.offset);
+            return buf;
+        }
+
+        byte[] open(int i, byte[] buf) throws Exception {
+            FrameRef ref = frames.get(i);
+            SecretKey key = keys.key(header.passphrase() ? header.salt : null);
+            // a private Cipher so frames can be decrypted from several threads
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(HiposCrypto.TAG_BITS, buf, 4, HiposCrypto.IV_BYTES));
+            cipher.updateAAD(aad(header, i));
+            return cipher.doFinal(buf, FRAME_HEADER_BYTES, ref.cipherLength());
+        }
+
+        /** Plaintext of frames [from, to), decrypted in parallel on executor when given. */
+        byte[] range(int from, int to, ExecutorService executor) throws Exception {
+            int total = 0;
+            for (int i = from; i < to; i++) total += frames.get(i).plainLength;
+            byte[] out = new byte[total];
+            List<Future<byte[]>> parts = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                final int n = i;
+                if (executor != null) {
+                    parts.add(executor.submit(() -> frame(n)));
+                }
+            }
+            int pos = 0;
+            for (int i = from; i < to; i++) {
+                byte[] p = executor != null ? parts.get(i - from).get() : frame(i);
+                System.arraycopy(p, 0, out, pos, p.length);
+                pos += p.length;
+            }
+            return out;
+        }
+
+        /** Authenticate every frame; returns null when the container is intact, else the problem found. */
+        String verify() {
+            if (!indexed) return "footer or index missing or damaged; " + frames.size() + " frames recovered by scan";
+            for (int i = 0; i < frames.size(); i++) {
+                try {
+                    frame(i);
+                } catch (Exception e) {
+                    return "frame " + i + " failed authentication: " + e.getMessage();
+                }
+            }
+            return null;
+        }
+    }
+}
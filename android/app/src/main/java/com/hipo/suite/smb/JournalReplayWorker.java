@@ -0,0 +1,90 @@
+package com.hipo.suite.smb;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps journal replay going once the app is in the background. SmbWriter
+ * enqueues it (unique, KEEP) when the app is paused or the network is lost with
+ * rows still pending; WorkManager starts it once a network is connected and keeps
+ * the process runnable while it drives the plugin's JournalSync until the journal
+ * is drained. Rows left over (a failing share, work stopped by the system) are
+ * retried with backoff. Replay needs the plugin's pool and keys, so a process
+ * started only for this work, without the plugin loaded, has nothing to drive:
+ * its rows stay journaled and replay on the next app start.
+ */
+public final class JournalReplayWorker extends Worker {
+    static final String WORK_NAME = "smb-journal-replay";
+    // WorkManager stops a worker after 10 minutes; leave room to report the result
+    private static final long MAX_RUN_MS = 9 * 60_000L;
+    private static final long POLL_MS = 1000L;
+
+    // the loaded plugin's sync, if any
+    private static volatile JournalSync live;
+
+    public JournalReplayWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    static void attach(JournalSync sync) {
+        live = sync;
+    }
+
+    static void detach(JournalSync sync) {
+        if (live == sync) live = null;
+    }
+
+    /** Replay pending rows once a network is connected, even if the app is backgrounded meanwhile. */
+    static void schedule(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(JournalReplayWorker.class)
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        JournalSync sync = live;
+        if (sync == null) {
+            // nothing loaded in this process; the plugin replays the journal when it starts
+            return Result.success();
+        }
+        long deadline = System.currentTimeMillis() + MAX_RUN_MS;
+        try {
+            sync.request("worker");
+            while (!isStopped() && !sync.awaitIdle(POLL_MS)) {
+                if (System.currentTimeMillis() > deadline) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
+        if (live != sync) {
+            // the plugin was destroyed meanwhile; its next load replays the rest
+            return Result.success();
+        }
+        int pending = sync.progress().pending;
+        if (pending > 0) {
+            Log.i("SmbWriter", "background replay left " + pending + " rows, retrying later");
+            return Result.retry();
+        }
+        return Result.success();
+    }
+}
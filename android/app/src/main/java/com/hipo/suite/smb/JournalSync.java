@@ -0,0 +1,235 @@
+package com.hipo.suite.smb;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Drains the write journal in the background. Triggers (enqueue, the periodic
+ * timer, the network coming back, the app going to background, flushJournal) are
+ * coalesced: one pass runs at a time and any triggers that arrive during it fold
+ * into a single follow-up pass. Nothing runs while the device has no network.
+ * A pass asks the planner for the pending rows, split into batches of at most
+ * maxBatchRows per destination. It hands them to the write scheduler with at most
+ * maxInFlight outstanding, fewer than the scheduler has threads, so a large backlog
+ * drains steadily while a worker stays free for interactive writes. Once a destination fails in a pass, its
+ * remaining batches wait for the next pass. Progress is reported after every batch.
+ */
+final class JournalSync {
+    // one scheduler thread is always left for interactive writes
+    static final int DEFAULT_MAX_IN_FLIGHT = Math.max(1, WriteScheduler.DEFAULT_THREADS - 1);
+    static final int DEFAULT_MAX_BATCH_ROWS = 200;
+
+    /** One planned write of journaled rows to a single destination. */
+    interface Batch {
+        String target();
+
+        int rows();
+
+        /** Queue the write and call done(ok) when it finishes; false if it could not be queued. */
+        boolean submit(Consumer<Boolean> done);
+    }
+
+    interface Planner {
+        // Pending rows not already being written, batched per destination
+        List<? extends Batch> plan(int maxBatchRows);
+
+        int pending();
+    }
+
+    /** Snapshot reported to the listener after every batch and pass. */
+    static final class Progress {
+        final boolean online;
+        final boolean running;
+        final int pending;
+        final int inFlight;
+        final long flushed;
+        final long failed;
+        final String reason;
+
+        Progress(boolean online, boolean running, int pending, int inFlight, long flushed, long failed, String reason) {
+            this.online = online;
+            this.running = running;
+            this.pending = pending;
+            this.inFlight = inFlight;
+            this.flushed = flushed;
+            this.failed = failed;
+            this.reason = reason;
+        }
+    }
+
+    private final Planner planner;
+    private final Consumer<Progress> listener;
+    private final BiConsumer<String, Throwable> warn;
+    private final int maxInFlight;
+    private final int maxBatchRows;
+    private final Semaphore slots;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SmbWriter-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // guarded by this
+    private boolean online = true;
+    private boolean running;
+    private boolean rerun;
+    private boolean closed;
+    private String reason = "";
+    private int inFlightRows;
+    private long flushedRows;
+    private long failedBatches;
+
+    JournalSync(Planner planner, Consumer<Progress> listener, BiConsumer<String, Throwable> warn) {
+        this(planner, listener, warn, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_BATCH_ROWS);
+    }
+
+    JournalSync(Planner planner, Consumer<Progress> listener, BiConsumer<String, Throwable> warn,
+                int maxInFlight, int maxBatchRows) {
+        this.planner = planner;
+        this.listener = listener;
+        this.warn = warn;
+        this.maxInFlight = maxInFlight;
+        this.maxBatchRows = maxBatchRows;
+        this.slots = new Semaphore(maxInFlight);
+    }
+
+    /** Ask for a pass; folds into the running one's follow-up, or waits for the network. */
+    void request(String why) {
+        synchronized (this) {
+            if (closed) return;
+            reason = why;
+            if (!online) return;
+            if (running) {
+                rerun = true;
+                return;
+            }
+            running = true;
+        }
+        executor.execute(this::run);
+    }
+
+    // Network state from the platform; regaining it starts a pass for whatever piled up
+    void setOnline(boolean up) {
+        boolean regained;
+        synchronized (this) {
+            regained = up && !online;
+            online = up;
+        }
+        if (regained) {
+            request("network");
+        } else {
+            report();
+        }
+    }
+
+    Progress progress() {
+        int pending = planner.pending();
+        synchronized (this) {
+            return new Progress(online, running, pending, inFlightRows, flushedRows, failedBatches, reason);
+        }
+    }
+
+    /** Wait up to timeoutMs for the running pass and its follow-ups to finish; true once idle or closed. */
+    synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (running && !closed) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                pass();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                warn.accept("journal sync pass failed", e);
+            }
+            synchronized (this) {
+                if (!rerun || !online || closed) {
+                    running = false;
+                    rerun = false;
+                    notifyAll();
+                    break;
+                }
+                rerun = false;
+            }
+        }
+        report();
+    }
+
+    private void pass() throws InterruptedException {
+        Set<String> failedTargets = new HashSet<>();
+        for (Batch b : planner.plan(maxBatchRows)) {
+            synchronized (this) {
+                if (!online || closed) break;
+            }
+            // checked after waiting for a slot, when more of the earlier results are in
+            slots.acquire();
+            synchronized (failedTargets) {
+                if (failedTargets.contains(b.target())) {
+                    slots.release();
+                    continue;
+                }
+            }
+            synchronized (this) {
+                inFlightRows += b.rows();
+            }
+            boolean queued = b.submit(ok -> {
+                synchronized (this) {
+                    inFlightRows -= b.rows();
+                    if (ok) {
+                        flushedRows += b.rows();
+                    } else {
+                        failedBatches++;
+                    }
+                }
+                if (!ok) {
+                    synchronized (failedTargets) {
+                        failedTargets.add(b.target());
+                    }
+                }
+                slots.release();
+                report();
+            });
+            if (!queued) {
+                // scheduler is saturated by interactive writes: leave the rest for the next pass
+                synchronized (this) {
+                    inFlightRows -= b.rows();
+                }
+                slots.release();
+                break;
+            }
+        }
+        // the pass ends once its batches have finished
+        slots.acquire(maxInFlight);
+        slots.release(maxInFlight);
+    }
+
+    private void report() {
+        try {
+            listener.accept(progress());
+        } catch (Exception e) {
+            warn.accept("sync progress listener failed", e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.hipo.suite.smb;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Caches PBKDF2-derived key bytes so the 100k-iteration derivation runs once per
+ * passphrase and session instead of once per row. Each passphrase gets a
+ * session salt that is reused for every v2 blob until the entry expires, then
+ * a fresh salt (and key) is derived. Entries are looked up by a SHA-256
+ * fingerprint, so the cache never holds the passphrase itself, and wipe()
+ * zeroes every cached key.
+ */
+final class KeyMaterialCache {
+    static final long DEFAULT_TTL_MS = 15 * 60 * 1000L;
+
+    static final class SessionKey {
+        final byte[] salt;
+        final SecretKey key;
+
+        SessionKey(byte[] salt, SecretKey key) {
+            this.salt = salt;
+            this.key = key;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] salt;
+        final byte[] keyBytes;
+        final long created;
+
+        Entry(byte[] salt, byte[] keyBytes, long created) {
+            this.salt = salt;
+            this.keyBytes = keyBytes;
+            this.created = created;
+        }
+    }
+
+    private final long ttlMs;
+    // fingerprint(passphrase) -> current session salt and key
+    private final Map<String, Entry> sessions = new HashMap<>();
+    // fingerprint(passphrase, salt) -> key, for salts read back from existing files
+    private final Map<String, Entry> derived = new HashMap<>();
+
+    KeyMaterialCache() {
+        this(DEFAULT_TTL_MS);
+    }
+
+    KeyMaterialCache(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /** Salt and key to encrypt new rows with; derives only when the session expired. */
+    synchronized SessionKey sessionKey(String passphrase) throws Exception {
+        long now = System.currentTimeMillis();
+        String fp = fingerprint(passphrase, null);
+        Entry e = sessions.get(fp);
+        if (e == null || now - e.created > ttlMs) {
+            if (e != null) wipe(e);
+            byte[] salt = HiposCrypto.randomBytes(HiposCrypto.SALT_BYTES);
+            e = new Entry(salt, HiposCrypto.deriveKeyBytes(passphrase, salt), now);
+            sessions.put(fp, e);
+        }
+        return new SessionKey(e.salt.clone(), new SecretKeySpec(e.keyBytes, "AES"));
+    }
+
+    /** Key for an explicit salt (e.g. read from a file header), cached until expiry. */
+    synchronized SecretKey key(String passphrase, byte[] salt) throws Exception {
+        long now = System.currentTimeMillis();
+        String fp = fingerprint(passphrase, salt);
+        Entry e = derived.get(fp);
+        if (e == null || now - e.created > ttlMs) {
+            if (e != null) wipe(e);
+            e = new Entry(salt.clone(), HiposCrypto.deriveKeyBytes(passphrase, salt), now);
+            derived.put(fp, e);
+        }
+        return new SecretKeySpec(e.keyBytes, "AES");
+    }
+
+    /** Zero and drop every cached key. */
+    synchronized void wipe() {
+        for (Iterator<Entry> it = sessions.values().iterator(); it.hasNext(); ) {
+            wipe(it.next());
+            it.remove();
+        }
+        for (Iterator<Entry> it = derived.values().iterator(); it.hasNext(); ) {
+            wipe(it.next());
+            it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return sessions.size() + derived.size();
+    }
+
+    private static void wipe(Entry e) {
+        Arrays.fill(e.keyBytes, (byte) 0);
+    }
+
+    private static String fingerprint(String passphrase, byte[] salt) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        if (salt != null) md.update(salt);
+        md.update(passphrase.getBytes(StandardCharsets.UTF_8));
+        byte[] d = md.digest();
+        StringBuilder sb = new StringBuilder(d.length * 2);
+        for (byte b : d) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,275 @@
+package com.hipo.suite.smb;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rolls a target into partition files so no single file grows for a whole season.
+ * For smb://host/share/dir/checkins.csv the partitions live in dir/checkins/:
+ * by day they are named 2026-10-18.csv, and once a file reaches the size limit
+ * writing continues in 2026-10-18.part2.csv, .part3, ... (checkins.partN.csv when
+ * only the size limit is set). The day is the one a row was created on (its
+ * created_at column), not the one it happens to reach the share. Each partition
+ * folder has a manifest.csv (file,rows,bytes,updated) that downstream readers use
+ * to pick the partitions they need. Every device keeps only its unsaved changes in
+ * memory and merges them into the manifest on the share periodically, holding
+ * manifest.csv.lock so tablets writing the same folder never overwrite each
+ * other's counts. A crash can leave the counts slightly behind.
+ */
+final class Partitioner {
+    static final String MANIFEST = "manifest.csv";
+    static final String LOCK_SUFFIX = ".lock";
+    static final String[] MANIFEST_COLUMNS = {"file", "rows", "bytes", "updated"};
+
+    /** Current part and its size for one partition base (day file or plain name). */
+    private static final class Current {
+        int part;
+        long bytes;
+    }
+
+    static final class ManifestEntry {
+        long rows;
+        long bytes;
+        String updated = "";
+        // as a change: bytes is the new file size (rewritten whole), not bytes added
+        boolean replaced;
+    }
+
+    /** One partition folder's manifest.csv and the changes not yet merged into it. */
+    static final class Manifest {
+        final SmbTarget target;
+        final String user;
+        final String pass;
+        Map<String, ManifestEntry> changes = new LinkedHashMap<>();
+
+        Manifest(SmbTarget target, String user, String pass) {
+            this.target = target;
+            this.user = user;
+            this.pass = pass;
+        }
+    }
+
+    private final Map<String, Current> current = new ConcurrentHashMap<>();
+    private final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+
+    /**
+     * Partition day of a check-in row: the device-local date of its created_at
+     * (column 0), or today when that is missing or not a date.
+     */
+    static LocalDate dayOf(CsvCodec.Row row) {
+        String[] cols = row.fields;
+        String v = cols.length > 0 ? cols[0].trim() : "";
+        try {
+            return Instant.parse(v).atZone(ZoneId.systemDefault()).toLocalDate();
+        } catch (DateTimeParseException e) {
+            // not UTC ISO-8601, try with an offset
+        }
+        try {
+            return OffsetDateTime.parse(v).atZoneSameInstant(ZoneId.systemDefault()).toLocalDate();
+        } catch (DateTimeParseException e) {
+            // try a plain local date or date-time
+        }
+        try {
+            return LocalDate.parse(v.length() > 10 ? v.substring(0, 10) : v);
+        } catch (DateTimeParseException e) {
+            return LocalDate.now();
+        }
+    }
+
+    /** Indexes of rows per partition day, days in order of first appearance. */
+    static Map<LocalDate, List<Integer>> byDay(List<CsvCodec.Row> rows) {
+        Map<LocalDate, List<Integer>> out = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            out.computeIfAbsent(dayOf(rows.get(i)), k -> new ArrayList<>()).add(i);
+        }
+        return out;
+    }
+
+    /** Partition base for a write: dir/name/day.ext (or dir/name/name.ext without day). */
+    static SmbTarget base(SmbTarget t, LocalDate day) {
+        String file = t.relPath.substring(t.parent.isEmpty() ? 0 : t.parent.length() + 1);
+        int dot = file.lastIndexOf('.');
+        String stem = dot > 0 ? file.substring(0, dot) : file;
+        String ext = dot > 0 ? file.substring(dot) : "";
+        String dir = t.sibling(stem);
+        return t.withPath(dir + "/" + (day != null ? day.toString() : stem) + ext);
+    }
+
+    /**
+     * File to write next for base: the current part, or the next one when the current
+     * part already holds maxBytes (0 = no size limit).
+     */
+    SmbTarget resolve(ShareFs disk, ShareMetadata meta, SmbTarget base, String user, String pass, long maxBytes) throws Exception {
+        manifest(base, user, pass);
+        if (maxBytes <= 0) return base;
+        String key = base.toString();
+        Current cur = current.get(key);
+        if (cur == null) {
+            cur = probe(disk, meta, base);
+            current.put(key, cur);
+        }
+        if (cur.bytes >= maxBytes) {
+            cur.part++;
+            cur.bytes = 0;
+        }
+        return base.withPath(XlsxAppender.partPath(base.relPath, cur.part));
+    }
+
+    /** Account a successful write of rows to written; replaced = the file was rewritten whole. */
+    void committed(SmbTarget base, SmbTarget written, int rows, long bytes, boolean replaced) {
+        Current cur = current.get(base.toString());
+        if (cur != null) {
+            cur.bytes = replaced ? bytes : cur.bytes + bytes;
+        }
+        Manifest m = manifests.get(manifestTarget(base).toString());
+        if (m == null) return;
+        ManifestEntry change = new ManifestEntry();
+        change.rows = rows;
+        change.bytes = bytes;
+        change.replaced = replaced;
+        change.updated = Instant.now().toString();
+        synchronized (m) {
+            apply(m.changes, fileName(written), change);
+        }
+    }
+
+    /** Manifests with unsaved changes, each with the changes taken out for saving. */
+    List<Map.Entry<Manifest, Map<String, ManifestEntry>>> takeDirty() {
+        List<Map.Entry<Manifest, Map<String, ManifestEntry>>> out = new ArrayList<>();
+        for (Manifest m : manifests.values()) {
+            synchronized (m) {
+                if (m.changes.isEmpty()) continue;
+                out.add(new AbstractMap.SimpleImmutableEntry<>(m, m.changes));
+                m.changes = new LinkedHashMap<>();
+            }
+        }
+        return out;
+    }
+
+    // Put back changes whose save failed, ahead of any made since, so the next flush tries again
+    void restore(Manifest m, Map<String, ManifestEntry> changes) {
+        synchronized (m) {
+            Map<String, ManifestEntry> merged = new LinkedHashMap<>();
+            for (Map.Entry<String, ManifestEntry> e : changes.entrySet()) apply(merged, e.getKey(), e.getValue());
+            for (Map.Entry<String, ManifestEntry> e : m.changes.entrySet()) apply(merged, e.getKey(), e.getValue());
+            m.changes = merged;
+        }
+    }
+
+    /**
+     * The manifest as it is on the share right now with changes applied. Call it
+     * while holding the manifest lock so no other device saves in between.
+     */
+    static byte[] merge(ShareFs disk, Manifest m, Map<String, ManifestEntry> changes) throws Exception {
+        Map<String, ManifestEntry> files = read(disk, m.target.relPath);
+        for (Map.Entry<String, ManifestEntry> e : changes.entrySet()) apply(files, e.getKey(), e.getValue());
+        return render(files);
+    }
+
+    /**
+     * Merge changes into manifest.csv while holding manifest.csv.lock, which is created
+     * exclusively and deleted on close (also by the server if this device drops off),
+     * so devices sharing the folder merge one at a time. Another device's lock fails
+     * the save, which is retried on the next run. The manifest is replaced in one
+     * rename so readers never see a half-written one.
+     */
+    static void save(ShareFs disk, RowCommitter committer, Manifest m, Map<String, ManifestEntry> changes) throws Exception {
+        String path = m.target.relPath;
+        try (ShareFs.Handle lock = disk.open(path + LOCK_SUFFIX, ShareFs.Mode.CREATE)) {
+            lock.deleteOnClose();
+            byte[] content = merge(disk, m, changes);
+            committer.replaceLocked(disk, path, path + ".tmp" + System.currentTimeMillis(), false,
+                    (ftmp, end) -> ftmp.write(content, 0, 0, content.length));
+        }
+    }
+
+    // Forget cached sizes, e.g. after the share reported a path missing
+    void forget(SmbTarget base) {
+        current.remove(base.toString());
+    }
+
+    private Manifest manifest(SmbTarget base, String user, String pass) {
+        SmbTarget mt = manifestTarget(base);
+        return manifests.computeIfAbsent(mt.toString(), k -> new Manifest(mt, user, pass));
+    }
+
+    private static SmbTarget manifestTarget(SmbTarget base) {
+        return base.withPath(base.sibling(MANIFEST));
+    }
+
+    private static String fileName(SmbTarget t) {
+        return t.parent.isEmpty() ? t.relPath : t.relPath.substring(t.parent.length() + 1);
+    }
+
+    // Last existing part of base and its current size
+    private static Current probe(ShareFs disk, ShareMetadata meta, SmbTarget base) {
+        Current cur = new Current();
+        cur.part = 1;
+        while (disk.fileExists(XlsxAppender.partPath(base.relPath, cur.part + 1))) {
+            cur.part++;
+        }
+        String path = XlsxAppender.partPath(base.relPath, cur.part);
+        if (meta.fileExists(disk, path)) {
+            cur.bytes = disk.size(path);
+        }
+        return cur;
+    }
+
+    // Add a change to a file's entry; changes must be applied oldest first
+    private static void apply(Map<String, ManifestEntry> files, String name, ManifestEntry change) {
+        ManifestEntry e = files.computeIfAbsent(name, k -> new ManifestEntry());
+        e.rows += change.rows;
+        e.bytes = change.replaced ? change.bytes : e.bytes + change.bytes;
+        e.replaced |= change.replaced;
+        if (change.updated.compareTo(e.updated) > 0) e.updated = change.updated;
+    }
+
+    // Entries of the manifest on the share; not cached, another device may have saved it since
+    private static Map<String, ManifestEntry> read(ShareFs disk, String path) throws Exception {
+        Map<String, ManifestEntry> files = new LinkedHashMap<>();
+        if (!disk.fileExists(path)) return files;
+        try (ShareFs.Handle f = disk.open(path, ShareFs.Mode.READ);
+             InputStream is = f.getInputStream();
+             BufferedReader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line = r.readLine(); // header
+            while ((line = r.readLine()) != null) {
+                String[] cols = CsvCodec.parseLine(line);
+                if (cols.length < 4 || cols[0].isEmpty()) continue;
+                ManifestEntry e = new ManifestEntry();
+                try {
+                    e.rows = Long.parseLong(cols[1]);
+                    e.bytes = Long.parseLong(cols[2]);
+                } catch (NumberFormatException nfe) {
+                    continue;
+                }
+                e.updated = cols[3];
+                files.put(cols[0], e);
+            }
+        }
+        return files;
+    }
+
+    private static byte[] render(Map<String, ManifestEntry> files) {
+        CsvCodec.Buffer buf = new CsvCodec.Buffer(64 + files.size() * 64);
+        CsvCodec.encodeRow(MANIFEST_COLUMNS, buf);
+        for (Map.Entry<String, ManifestEntry> e : files.entrySet()) {
+            ManifestEntry v = e.getValue();
+            CsvCodec.encodeRow(new String[]{e.getKey(), Long.toString(v.rows), Long.toString(v.bytes), v.updated}, buf);
+        }
+        return Arrays.copyOf(buf.data, buf.length);
+    }
+}
@@ -0,0 +1,177 @@
+package com.hipo.suite.smb;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.protocol.transport.TransportException;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed write is retried. Failures are classified
+ * from the smbj exception chain:
+ * <ul>
+ * <li>FATAL: authentication, permission and bad-path errors, and local crypto
+ *     failures. Retrying cannot help, so the write fails at once. Access denied
+ *     is only fatal when opening or creating the file.</li>
+ * <li>CONTENTION: the file is open or locked by someone else (an operator has
+ *     the CSV open in Excel). The session is healthy, so the write waits and retries
+ *     on the same connection. A rename-with-replace onto a file someone holds open
+ *     fails with access denied, and counts here too.</li>
+ * <li>TRANSIENT: network, timeout and server-busy errors. The write reconnects and
+ *     retries.</li>
+ * </ul>
+ * Delays grow exponentially from the base delay with equal jitter and are capped.
+ * A per-host circuit breaker opens after consecutive transient failures, so an
+ * unreachable server is not hammered while it is open. Fatal failures fail the
+ * write on their own and leave the breaker alone.
+ */
+final class RetryPolicy {
+    enum Kind { TRANSIENT, CONTENTION, FATAL }
+
+    static final long MAX_DELAY_MS = 30_000L;
+    static final int BREAKER_THRESHOLD = 5;
+    static final long BREAKER_OPEN_MS = 30_000L;
+    static final long BREAKER_MAX_OPEN_MS = 5 * 60_000L;
+
+    /** Thrown instead of attempting a write while the host's breaker is open. */
+    static final class CircuitOpenException extends IOException {
+        final long retryAfterMs;
+
+        CircuitOpenException(String host, long retryAfterMs) {
+            super("circuit open for " + host + ", retry in " + retryAfterMs + " ms");
+            this.retryAfterMs = retryAfterMs;
+        }
+    }
+
+    private static final class Breaker {
+        int failures;
+        long openUntil;
+        long openMs = BREAKER_OPEN_MS;
+        // a single trial write is let through once the open period has elapsed
+        boolean trialInFlight;
+    }
+
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    static Kind classify(Throwable e) {
+        for (Throwable c = e; c != null; c = c.getCause()) {
+            if (c instanceof CircuitOpenException) return Kind.FATAL;
+            if (c instanceof SMBApiException) return classify((SMBApiException) c);
+            if (c instanceof TransportException) return Kind.TRANSIENT;
+            if (c instanceof GeneralSecurityException) return Kind.FATAL;
+        }
+        return Kind.TRANSIENT;
+    }
+
+    static Kind classify(SMBApiException e) {
+        // the server refuses the rename (SET_INFO) while the target is open without
+        // delete sharing; only a denied open/create is a real permission problem
+        if (e.getStatus() == NtStatus.STATUS_ACCESS_DENIED
+                && e.getFailedCommand() != null
+                && e.getFailedCommand() != SMB2MessageCommandCode.SMB2_CREATE) {
+            return Kind.CONTENTION;
+        }
+        return classify(e.getStatus());
+    }
+
+    static Kind classify(NtStatus status) {
+        if (status == null) return Kind.TRANSIENT;
+        switch (status) {
+            case STATUS_LOGON_FAILURE:
+            case STATUS_ACCOUNT_DISABLED:
+            case STATUS_PASSWORD_EXPIRED:
+            case STATUS_ACCESS_DENIED:
+            case STATUS_BAD_NETWORK_NAME:
+            case STATUS_OBJECT_NAME_INVALID:
+            case STATUS_DISK_FULL:
+            case STATUS_NOT_SUPPORTED:
+                return Kind.FATAL;
+            case STATUS_SHARING_VIOLATION:
+            case STATUS_LOCK_NOT_GRANTED:
+            case STATUS_FILE_LOCK_CONFLICT:
+            case STATUS_DELETE_PENDING:
+            case STATUS_OBJECT_NAME_COLLISION:
+                return Kind.CONTENTION;
+            default:
+                return Kind.TRANSIENT;
+        }
+    }
+
+    /** Delay before attempt (2, 3, ...): base * 2^(attempt-2), capped, with equal jitter. */
+    static long delayMs(int attempt, Kind kind, long baseMs) {
+        long base = Math.max(1, baseMs);
+        // contention clears on a human timescale (a file closed in Excel), start slower
+        if (kind == Kind.CONTENTION) base *= 2;
+        int shift = Math.min(Math.max(0, attempt - 2), 20);
+        long exp = Math.min(MAX_DELAY_MS, base << shift);
+        long half = exp / 2;
+        return half + ThreadLocalRandom.current().nextLong(exp - half + 1);
+    }
+
+    /** Fail fast while host's breaker is open; after the open period one trial write passes. */
+    void checkBreaker(String host) throws CircuitOpenException {
+        Breaker b = breakers.get(host);
+        if (b == null) return;
+        synchronized (b) {
+            if (b.failures < BREAKER_THRESHOLD) return;
+            long now = System.currentTimeMillis();
+            if (now < b.openUntil || b.trialInFlight) {
+                throw new CircuitOpenException(host, Math.max(0, b.openUntil - now));
+            }
+            b.trialInFlight = true;
+        }
+    }
+
+    void onSuccess(String host) {
+        Breaker b = breakers.get(host);
+        if (b == null) return;
+        synchronized (b) {
+            b.failures = 0;
+            b.openMs = BREAKER_OPEN_MS;
+            b.trialInFlight = false;
+        }
+    }
+
+    void onFailure(String host, Kind kind) {
+        if (kind == Kind.CONTENTION) {
+            // the server answered: a locked file says the host is healthy
+            onSuccess(host);
+            return;
+        }
+        // a bad password or path is not an outage; only transient failures trip the breaker
+        if (kind != Kind.TRANSIENT) return;
+        Breaker b = breakers.computeIfAbsent(host, h -> new Breaker());
+        synchronized (b) {
+            b.failures++;
+            if (b.failures >= BREAKER_THRESHOLD) {
+                if (b.trialInFlight) {
+                    // the trial failed: stay open for longer
+                    b.openMs = Math.min(BREAKER_MAX_OPEN_MS, b.openMs * 2);
+                }
+                b.openUntil = System.currentTimeMillis() + b.openMs;
+                b.trialInFlight = false;
+            }
+        }
+    }
+
+    // host -> "closed" | "open" | "half-open"
+    Map<String, String> breakerStates() {
+        Map<String, String> out = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Breaker> e : breakers.entrySet()) {
+            Breaker b = e.getValue();
+            synchronized (b) {
+                String state = b.failures < BREAKER_THRESHOLD ? "closed"
+                        : now < b.openUntil ? "open" : "half-open";
+                out.put(e.getKey(), state);
+            }
+        }
+        return out;
+    }
+}
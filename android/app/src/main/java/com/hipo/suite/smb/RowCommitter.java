@@ -0,0 +1,313 @@
+package com.hipo.suite.smb;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.function.BiConsumer;
+import javax.crypto.SecretKey;
+
+/**
+ * Builds the bytes for a batch of rows (CSV, encrypted CSV or a rebuilt XLSX part)
+ * and writes them to a share, appending or atomically replacing the target.
+ * Pure JVM: the share is reached through {@link ShareFs} and KeyStore keys through
+ * {@link KeyLookup}, so SmbWriter supplies SMB and the Android KeyStore while the
+ * benchmarks run the same path against local files and software keys.
+ */
+final class RowCommitter {
+    /** Resolves a KeyStore alias to its AES key (created on first use in the app). */
+    interface KeyLookup {
+        SecretKey key(String alias) throws Exception;
+    }
+
+    // Writes the new content into the temp file; end is the length of the copied original
+    interface TmpWriter {
+        void write(ShareFs.Handle ftmp, long end) throws Exception;
+    }
+
+    /** Output computed by a failed attempt that the next attempt can send again as is. */
+    static final class Prepared implements AutoCloseable {
+        // CSV: payload[0, payloadLength) to append (encrypted for v1/v2) and whether it starts with the header
+        byte[] payload;
+        int payloadLength;
+        boolean withHeader;
+        // pooled encoder buffer backing payload for plaintext and v3 writes
+        CsvCodec.Buffer buffer;
+        // XLSX: the rebuilt parts the rows were split over; each holds its complete new
+        // file, so resending one is idempotent. The first partsWritten are already on the share
+        List<XlsxAppender.Part> parts;
+        int partsWritten;
+
+        @Override
+        public void close() throws Exception {
+            CsvCodec.release(buffer);
+            buffer = null;
+            if (parts != null) {
+                for (XlsxAppender.Part part : parts) part.close();
+            }
+            parts = null;
+        }
+    }
+
+    private final WriterMetrics metrics;
+    private final KeyMaterialCache keyCache;
+    private final KeyLookup keystore;
+    private final Partitioner partitions;
+    // Rolling XLSX parts for protectExcel mode
+    private final XlsxAppender xlsx;
+    // (message, cause) for recoverable problems worth a log line
+    private final BiConsumer<String, Throwable> warn;
+
+    RowCommitter(WriterMetrics metrics, KeyMaterialCache keyCache, KeyLookup keystore,
+                 Partitioner partitions, BiConsumer<String, Throwable> warn) {
+        this.metrics = metrics;
+        this.keyCache = keyCache;
+        this.keystore = keystore;
+        this.partitions = partitions;
+        this.xlsx = new XlsxAppender(metrics);
+        this.warn = warn;
+    }
+
+    /** Append rows to base (or its current partition) in a single open/append/flush cycle. */
+    void commit(ShareFs disk, ShareMetadata meta, SmbTarget base, List<CsvCodec.Row> rows, WriteOptions o, Prepared prepared) throws Exception {
+        SmbTarget t = base;
+        if (o.partitioned()) {
+            // size rolling is for CSV; workbooks already roll by excelMaxRows
+            t = partitions.resolve(disk, meta, base, o.user, o.pass, o.protectExcel ? 0 : o.partitionMaxBytes);
+        }
+        String relPath = t.relPath;
+        // Ensure parent dirs exist (skipped once they are known on this share)
+        long t0 = WriterMetrics.start();
+        meta.ensureDirs(disk, t.parent);
+        metrics.record(WriterMetrics.MKDIR, t0);
+
+        if (o.protectExcel) {
+            // Rebuild only the current (bounded) part of the workbook, once per write; a batch
+            // that does not fit spills into the next part
+            if (prepared.parts == null) {
+                try {
+                    prepared.parts = xlsx.append(disk, meta, t, rows, o.excelMaxRows, o.excelPassword);
+                } catch (Exception e) {
+                    warn.accept("failed building XLSX", e);
+                    xlsx.forget(t);
+                    throw e;
+                }
+            }
+            while (prepared.partsWritten < prepared.parts.size()) {
+                XlsxAppender.Part part = prepared.parts.get(prepared.partsWritten);
+                long bytes = writeTarget(disk, part.path, false, rows, prepared, part, o);
+                metrics.written(part.rows, bytes);
+                meta.fileCreated(part.path);
+                if (o.partitioned()) {
+                    partitions.committed(base, t.withPath(part.path), part.rows, bytes, true);
+                }
+                xlsx.committed(part);
+                prepared.partsWritten++;
+            }
+            return;
+        }
+
+        // CSV/plain or encrypted CSV; the cached answer is only a guess at the header,
+        // writeTarget checks it against the opened file
+        String target = relPath;
+        boolean targetExists = meta.fileExists(disk, target);
+        prepareCsv(rows, !targetExists, o, prepared);
+        long bytes = writeTarget(disk, target, targetExists, rows, prepared, null, o);
+        metrics.written(rows.size(), bytes);
+        meta.fileCreated(target);
+        if (o.partitioned()) {
+            partitions.committed(base, t.withPath(target), rows.size(), bytes, false);
+        }
+    }
+
+    // Encode (and for v1/v2 encrypt) rows into prepared, reusing the previous attempt's
+    // bytes unless the header decision changed
+    private void prepareCsv(List<CsvCodec.Row> rows, boolean withHeader, WriteOptions o, Prepared prepared) throws Exception {
+        if (prepared.payload != null && prepared.withHeader == withHeader) return;
+        prepared.payload = null;
+        if (prepared.buffer == null) prepared.buffer = CsvCodec.acquire();
+        CsvCodec.Buffer buf = prepared.buffer;
+        long t0 = WriterMetrics.start();
+        encodeCsv(rows, withHeader, buf);
+        metrics.record(WriterMetrics.SERIALISE, t0);
+        byte[] toWrite = buf.data;
+        int toWriteLength = buf.length;
+        // v3 containers are sealed frame by frame while appending, in writeTarget
+        if (o.encrypt && o.encFormat != 3) {
+            t0 = WriterMetrics.start();
+            try {
+                toWrite = encrypt(buf.data, buf.length, o);
+                toWriteLength = toWrite.length;
+            } catch (Exception e) {
+                warn.accept("encryption failed", e);
+                throw e;
+            }
+            metrics.record(WriterMetrics.ENCRYPT, t0);
+        }
+        prepared.payload = toWrite;
+        prepared.payloadLength = toWriteLength;
+        prepared.withHeader = withHeader;
+    }
+
+    /** Encode rows into buf (reset first), preceded by the CSV header for a new file. */
+    static void encodeCsv(List<CsvCodec.Row> rows, boolean withHeader, CsvCodec.Buffer buf) {
+        buf.length = 0;
+        if (withHeader) {
+            CsvCodec.encodeRow(XlsxAppender.COLUMNS, buf);
+        }
+        for (CsvCodec.Row row : rows) {
+            CsvCodec.encodeRow(row, buf);
+        }
+    }
+
+    /** HIPOSENC v2 blob with the session's passphrase-derived key, or v1 with the KeyStore key. */
+    byte[] encrypt(byte[] plain, int length, WriteOptions o) throws Exception {
+        if (o.passphrase != null && !o.passphrase.isEmpty()) {
+            // PBKDF2 key and salt are cached per session; the salt still goes in the header
+            KeyMaterialCache.SessionKey sk = keyCache.sessionKey(o.passphrase);
+            return HiposCrypto.encryptAesGcmWithSalt(sk.key, plain, 0, length, sk.salt);
+        }
+        return HiposCrypto.encryptAesGcm(keystore.key(o.keyAlias), plain, 0, length);
+    }
+
+    // Passphrase keys come from the PBKDF2 cache, otherwise the KeyStore alias
+    HiposEncV3.KeySource keySource(WriteOptions o) {
+        if (o.passphrase != null && !o.passphrase.isEmpty()) {
+            return salt -> keyCache.key(o.passphrase, salt);
+        }
+        return salt -> keystore.key(o.keyAlias);
+    }
+
+    /**
+     * Write the CSV payload or stream the XLSX part to target, atomically when requested;
+     * returns bytes sent. The CSV header goes in when the opened file is empty, whatever
+     * the metadata cache said: a CSV deleted or rotated behind our back is recreated
+     * with its header.
+     */
+    private long writeTarget(ShareFs disk, String target, boolean targetExists, List<CsvCodec.Row> rows,
+                             Prepared prepared, XlsxAppender.Part part, WriteOptions o) throws Exception {
+        final boolean v3 = o.encrypt && o.encFormat == 3 && !o.protectExcel;
+        final long[] streamed = new long[1];
+        if (o.atomic) {
+            // CSV rows are appended to a copy of the current file; a rebuilt workbook replaces it
+            String tmpName = target + ".tmp" + System.currentTimeMillis();
+            commitAtomic(disk, target, tmpName, targetExists && !o.protectExcel, (ftmp, end) -> {
+                if (part != null) {
+                    try (WriterMetrics.CountingOutputStream os = new WriterMetrics.CountingOutputStream(ftmp.getOutputStream(false))) {
+                        part.writeTo(os);
+                        streamed[0] = os.bytes;
+                    }
+                } else {
+                    prepareCsv(rows, end == 0, o, prepared);
+                    if (v3) {
+                        appendV3(ftmp, prepared.payload, prepared.payloadLength, o);
+                    } else {
+                        ftmp.write(prepared.payload, end, 0, prepared.payloadLength);
+                    }
+                }
+            });
+        } else if (v3) {
+            long t0 = WriterMetrics.start();
+            try (ShareFs.Handle f = disk.open(target, ShareFs.Mode.READ_WRITE)) {
+                prepareCsv(rows, f.size() == 0, o, prepared);
+                appendV3(f, prepared.payload, prepared.payloadLength, o);
+                f.flush();
+            }
+            metrics.record(WriterMetrics.UPLOAD, t0);
+        } else {
+            long t0 = WriterMetrics.start();
+            // append directly; a rebuilt workbook truncates and replaces the old bytes
+            try (ShareFs.Handle f = disk.open(target, o.protectExcel ? ShareFs.Mode.REPLACE : ShareFs.Mode.APPEND)) {
+                if (part == null) prepareCsv(rows, f.size() == 0, o, prepared);
+                try (WriterMetrics.CountingOutputStream os = new WriterMetrics.CountingOutputStream(f.getOutputStream(!o.protectExcel))) {
+                    if (part != null) {
+                        part.writeTo(os);
+                    } else {
+                        os.write(prepared.payload, 0, prepared.payloadLength);
+                    }
+                    os.flush();
+                    streamed[0] = os.bytes;
+                }
+            }
+            metrics.record(WriterMetrics.UPLOAD, t0);
+        }
+        return part != null ? streamed[0] : prepared.payloadLength;
+    }
+
+    // Seal plain into frames and append them to a v3 container (created if the file is empty).
+    // Recorded as encryption like a v2 blob; it includes reading back the last frame to reseal
+    private void appendV3(ShareFs.Handle f, byte[] plain, int plainLength, WriteOptions o) throws Exception {
+        boolean usePassphrase = o.passphrase != null && !o.passphrase.isEmpty();
+        long t0 = WriterMetrics.start();
+        try {
+            HiposEncV3.append(new ShareFileStore(f), plain, plainLength,
+                    usePassphrase ? HiposCrypto.randomBytes(HiposCrypto.SALT_BYTES) : null,
+                    keySource(o), HiposEncV3.DEFAULT_FRAME_BYTES);
+        } catch (GeneralSecurityException e) {
+            warn.accept("encryption failed", e);
+            throw e;
+        }
+        metrics.record(WriterMetrics.ENCRYPT, t0);
+    }
+
+    /**
+     * Build the complete new file in tmpName and swap it over target with a single
+     * rename-with-replace (SMB2 FileRenameInformation), so readers see either the old
+     * or the new file and the target never disappears. When appendToExisting is set
+     * the current contents are first duplicated with a server-side copy (FSCTL_SRV_COPYCHUNK),
+     * so existing bytes never cross the tablet's Wi-Fi link.
+     * Copy and rename run under target.lock, created exclusively and deleted on close
+     * (by the server too if this device drops off), so two devices replacing the same
+     * file take turns instead of one rename discarding the other's rows. A held lock
+     * fails the write with a name collision, which is retried as contention.
+     */
+    void commitAtomic(ShareFs disk, String target, String tmpName, boolean appendToExisting, TmpWriter writer) throws Exception {
+        try (ShareFs.Handle lock = disk.open(target + Partitioner.LOCK_SUFFIX, ShareFs.Mode.CREATE)) {
+            lock.deleteOnClose();
+            replaceLocked(disk, target, tmpName, appendToExisting, writer);
+        }
+    }
+
+    /** commitAtomic for a caller that already holds target's lock file. */
+    void replaceLocked(ShareFs disk, String target, String tmpName, boolean appendToExisting, TmpWriter writer) throws Exception {
+        boolean renamed = false;
+        try (ShareFs.Handle ftmp = disk.open(tmpName, ShareFs.Mode.CREATE)) {
+            try {
+                long offset = 0;
+                long t0 = WriterMetrics.start();
+                if (appendToExisting) {
+                    try (ShareFs.Handle fsrc = disk.open(target, ShareFs.Mode.READ)) {
+                        offset = fsrc.size();
+                        try {
+                            fsrc.copyTo(ftmp);
+                        } catch (Exception e) {
+                            // server without copy-chunk support: fall back to a client-side copy
+                            warn.accept("server-side copy failed, copying through client", e);
+                            ftmp.setLength(0);
+                            try (InputStream isSrc = fsrc.getInputStream();
+                                 OutputStream osTmp = ftmp.getOutputStream(false)) {
+                                byte[] buffer = new byte[65536];
+                                int r;
+                                while ((r = isSrc.read(buffer)) != -1) {
+                                    osTmp.write(buffer, 0, r);
+                                }
+                            }
+                        }
+                    }
+                    metrics.record(WriterMetrics.COPY, t0);
+                }
+                t0 = WriterMetrics.start();
+                writer.write(ftmp, offset);
+                ftmp.flush();
+                metrics.record(WriterMetrics.UPLOAD, t0);
+                t0 = WriterMetrics.start();
+                ftmp.rename(target, true);
+                metrics.record(WriterMetrics.RENAME, t0);
+                renamed = true;
+            } finally {
+                // never leave a half-written temp file next to the target
+                if (!renamed) ftmp.deleteOnClose();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.hipo.suite.smb;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * HiposEncV3.Store backed by an open share file handle (opened with
+ * {@link ShareFs.Mode#READ_WRITE}, or {@link ShareFs.Mode#READ} for readers).
+ */
+final class ShareFileStore implements HiposEncV3.Store {
+    private final ShareFs.Handle file;
+
+    ShareFileStore(ShareFs.Handle file) {
+        this.file = file;
+    }
+
+    @Override
+    public long size() {
+        return file.size();
+    }
+
+    @Override
+    public void read(byte[] buf, long offset) throws IOException {
+        int pos = 0;
+        while (pos < buf.length) {
+            int r = file.read(buf, offset + pos, pos, buf.length - pos);
+            if (r <= 0) throw new EOFException("short read at " + (offset + pos));
+            pos += r;
+        }
+    }
+
+    @Override
+    public void write(byte[] buf, long offset) {
+        file.write(buf, offset, 0, buf.length);
+    }
+
+    @Override
+    public void setLength(long length) {
+        file.setLength(length);
+    }
+}
@@ -0,0 +1,65 @@
+package com.hipo.suite.smb;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The file operations the write path needs from a share. {@link SmbShareFs}
+ * implements them over a pooled smbj DiskShare; the JMH benchmarks run the same
+ * code against local files. Paths are share-relative with '/' separators, and
+ * failures surface as the backend's unchecked exceptions (SMBApiException on SMB).
+ */
+interface ShareFs {
+    /** How a file is opened; each mode maps to one SMB access mask and create disposition. */
+    enum Mode {
+        // existing file, read data and attributes
+        READ,
+        // append at the end, created when missing
+        APPEND,
+        // contents replaced from offset 0, created when missing
+        REPLACE,
+        // random-access read/write (v3 containers), created when missing
+        READ_WRITE,
+        // new file that must not exist yet (temp files), deletable and renameable
+        CREATE
+    }
+
+    boolean fileExists(String path);
+
+    boolean folderExists(String path);
+
+    void mkdir(String path);
+
+    long size(String path);
+
+    Handle open(String path, Mode mode);
+
+    /** An open file. */
+    interface Handle extends Closeable {
+        long size();
+
+        int read(byte[] buf, long fileOffset, int off, int len);
+
+        void write(byte[] buf, long fileOffset, int off, int len);
+
+        InputStream getInputStream();
+
+        // append = start writing at the current end of file, else at offset 0
+        OutputStream getOutputStream(boolean append);
+
+        void setLength(long length);
+
+        void flush();
+
+        /** Copy this file's contents to dest; on SMB the server copies the bytes (FSCTL_SRV_COPYCHUNK). */
+        void copyTo(Handle dest) throws Exception;
+
+        void rename(String target, boolean replace);
+
+        void deleteOnClose();
+
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,88 @@
+package com.hipo.suite.smb;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMBApiException;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directories and files known to exist on one connected share, so steady-state
+ * writes skip the folderExists/mkdir walk and fileExists probes. Only positive
+ * answers are cached: a path that did not exist is asked again next time.
+ * The pool clears it whenever the share is reconnected or invalidated, and
+ * writers call {@link #invalidate(Exception)} when the server reports a path
+ * as missing (someone deleted or moved it behind our back).
+ */
+final class ShareMetadata {
+    private final Set<String> dirs = ConcurrentHashMap.newKeySet();
+    private final Set<String> files = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Create every folder of parent ("a/b/c") that is not known to exist yet. */
+    void ensureDirs(ShareFs disk, String parent) {
+        if (parent == null || parent.isEmpty()) return;
+        if (dirs.contains(parent)) {
+            hits.incrementAndGet();
+            return;
+        }
+        misses.incrementAndGet();
+        String pathAcc = "";
+        for (String fldr : parent.split("/")) {
+            pathAcc = pathAcc.isEmpty() ? fldr : pathAcc + "/" + fldr;
+            if (dirs.contains(pathAcc)) continue;
+            if (!disk.folderExists(pathAcc)) {
+                disk.mkdir(pathAcc);
+            }
+            dirs.add(pathAcc);
+        }
+    }
+
+    boolean fileExists(ShareFs disk, String path) {
+        if (files.contains(path)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean exists = disk.fileExists(path);
+        if (exists) files.add(path);
+        return exists;
+    }
+
+    // Record a file this client just created or replaced
+    void fileCreated(String path) {
+        files.add(path);
+    }
+
+    void invalidate() {
+        dirs.clear();
+        files.clear();
+    }
+
+    /** Drop everything when e says a path was not found; other errors keep the cache. */
+    void invalidate(Exception e) {
+        if (isNotFound(e)) invalidate();
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    static boolean isNotFound(Throwable e) {
+        for (Throwable c = e; c != null; c = c.getCause()) {
+            if (c instanceof SMBApiException) {
+                NtStatus s = ((SMBApiException) c).getStatus();
+                return s == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+                        || s == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND
+                        || s == NtStatus.STATUS_DELETE_PENDING;
+            }
+        }
+        return false;
+    }
+}
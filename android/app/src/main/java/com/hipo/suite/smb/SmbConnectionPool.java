@@ -0,0 +1,375 @@
+package com.hipo.suite.smb;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps Connection/Session/DiskShare triples alive between writes so a check-in
+ * only pays for the file operations instead of TCP + NTLM + tree connect.
+ * Entries are keyed by host/share/user, health-checked on every acquire and
+ * evicted after being idle for {@code idleTimeoutMs}. A share that failed is
+ * replaced for new leases but only closed once the leases still using it are
+ * released, so one failing write never pulls the share from under another.
+ * Closing a share (tree disconnect, logoff) happens outside the entry lock.
+ */
+class SmbConnectionPool implements Closeable {
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+
+    private final Connector connector;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long idleTimeoutMs;
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Opens the shares the pool hands out: {@link SmbConnector} in the app, a fake in tests. */
+    interface Connector extends Closeable {
+        Link connect(String host, String share, String user, char[] pass) throws Exception;
+
+        @Override
+        void close();
+    }
+
+    /** One connected share. */
+    interface Link {
+        ShareFs fs();
+
+        boolean isHealthy();
+
+        // force: drop the transport too, even if other shares still lease it
+        void close(boolean force);
+    }
+
+    SmbConnectionPool(WriterMetrics metrics) {
+        this(DEFAULT_IDLE_TIMEOUT_MS, metrics);
+    }
+
+    SmbConnectionPool(long idleTimeoutMs, WriterMetrics metrics) {
+        this(idleTimeoutMs, new SmbConnector(metrics));
+    }
+
+    SmbConnectionPool(long idleTimeoutMs, Connector connector) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.connector = connector;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SmbPool-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000L, idleTimeoutMs / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connected share. The returned lease must be closed; call
+     * {@link Lease#invalidate(boolean)} first when the share failed so the next
+     * acquire reconnects instead of reusing it.
+     */
+    Lease acquire(String host, String share, String user, String pass) throws Exception {
+        String key = host + "|" + share + "|" + user;
+        List<Share> retired = new ArrayList<>(1);
+        try {
+            while (true) {
+                Entry entry = entries.computeIfAbsent(key, k -> new Entry(host, share, user));
+                synchronized (entry) {
+                    // the sweeper may have evicted this entry between lookup and lock
+                    if (entries.get(key) != entry) continue;
+                    return acquireLocked(entry, pass, retired);
+                }
+            }
+        } finally {
+            closeAll(retired);
+        }
+    }
+
+    private Lease acquireLocked(Entry entry, String pass, List<Share> retired) throws Exception {
+        if (entry.current != null && entry.current.link.isHealthy() && Arrays.equals(entry.pass, pass.toCharArray())) {
+            hits.incrementAndGet();
+        } else {
+            if (entry.everOpened) {
+                reconnects.incrementAndGet();
+                // an unhealthy transport is dropped; a password change only needs a new session
+                boolean broken = entry.current != null && !entry.current.link.isHealthy();
+                Share old = entry.retire(broken);
+                if (old != null) retired.add(old);
+            } else {
+                misses.incrementAndGet();
+            }
+            entry.open(connector, pass);
+        }
+        Share share = entry.current;
+        share.inUse++;
+        entry.inUse++;
+        entry.lastUsed = System.currentTimeMillis();
+        return new Lease(entry, share);
+    }
+
+    // Runs on the sweeper thread
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<Share> evicted = new ArrayList<>();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            synchronized (entry) {
+                if (entry.inUse == 0 && (entry.current == null || now - entry.lastUsed > idleTimeoutMs)) {
+                    if (entry.current != null) {
+                        evictions.incrementAndGet();
+                        Share old = entry.retire(false);
+                        if (old != null) evicted.add(old);
+                    }
+                    it.remove();
+                }
+            }
+        }
+        closeAll(evicted);
+    }
+
+    private static void closeAll(List<Share> shares) {
+        for (Share s : shares) s.close();
+    }
+
+    Map<String, Long> stats() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        out.put("hits", hits.get());
+        out.put("misses", misses.get());
+        out.put("reconnects", reconnects.get());
+        out.put("evictions", evictions.get());
+        out.put("open", (long) entries.size());
+        long metaHits = 0, metaMisses = 0;
+        for (Entry entry : entries.values()) {
+            metaHits += entry.metadata.hits();
+            metaMisses += entry.metadata.misses();
+        }
+        out.put("metadataHits", metaHits);
+        out.put("metadataMisses", metaMisses);
+        return out;
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        List<Share> retired = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                Share old = entry.retire(false);
+                if (old != null) retired.add(old);
+            }
+        }
+        entries.clear();
+        closeAll(retired);
+        // drops whatever connections leases still in flight hold
+        connector.close();
+    }
+
+    static final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final Share share;
+        private boolean closed;
+
+        private Lease(Entry entry, Share share) {
+            this.entry = entry;
+            this.share = share;
+        }
+
+        ShareFs fs() {
+            return share.link.fs();
+        }
+
+        // Paths known to exist on this share; cleared on every reconnect
+        ShareMetadata metadata() {
+            return entry.metadata;
+        }
+
+        /**
+         * Drop the pooled share so the next acquire performs a full reconnect; it is
+         * closed once every lease still using it has been closed. broken (a network
+         * or transport failure) also drops the TCP connection instead of giving it
+         * back to smbj, which would hand the same dead connection to the reconnect.
+         */
+        void invalidate(boolean broken) {
+            Share old;
+            synchronized (entry) {
+                if (broken) share.broken = true;
+                if (entry.current == share) {
+                    old = entry.retire(broken);
+                } else {
+                    share.stale = true;
+                    old = null;
+                }
+            }
+            if (old != null) old.close();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            boolean last;
+            synchronized (entry) {
+                entry.inUse--;
+                entry.lastUsed = System.currentTimeMillis();
+                share.inUse--;
+                last = share.stale && share.inUse == 0;
+            }
+            if (last) share.close();
+        }
+    }
+
+    /** One pooled link and the leases using it. */
+    private static final class Share {
+        final Link link;
+        int inUse;
+        // replaced after a failure: closed when the last lease on it is released
+        boolean stale;
+        // failed at the transport level: force-close the connection
+        boolean broken;
+
+        Share(Link link) {
+            this.link = link;
+        }
+
+        void close() {
+            link.close(broken);
+        }
+    }
+
+    private static final class Entry {
+        final String host;
+        final String share;
+        final String user;
+        final ShareMetadata metadata = new ShareMetadata();
+        char[] pass;
+        // share handed to new leases; null until opened or after a failure
+        Share current;
+        // leases on any of this entry's shares
+        int inUse;
+        long lastUsed;
+        boolean everOpened;
+
+        Entry(String host, String share, String user) {
+            this.host = host;
+            this.share = share;
+            this.user = user;
+        }
+
+        void open(Connector connector, String password) throws Exception {
+            pass = password.toCharArray();
+            current = new Share(connector.connect(host, share, user, pass.clone()));
+            everOpened = true;
+        }
+
+        /**
+         * Stop handing out the current share. Returns it when no lease uses it, for
+         * the caller to close once it has left the entry lock; otherwise the last
+         * lease closes it.
+         */
+        Share retire(boolean broken) {
+            Share old = current;
+            current = null;
+            // a new tree connect may see a different share state
+            metadata.invalidate();
+            if (old == null) return null;
+            old.stale = true;
+            if (broken) old.broken = true;
+            return old.inUse == 0 ? old : null;
+        }
+    }
+
+    /**
+     * Connects over smbj. Every SMBClient.connect() leases the client's cached
+     * Connection for the host, so each link gives its lease back with
+     * Connection.close(); smbj closes the socket once the last lease is gone.
+     */
+    static final class SmbConnector implements Connector {
+        private final SMBClient client = new SMBClient();
+        private final WriterMetrics metrics;
+
+        SmbConnector(WriterMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Link connect(String host, String share, String user, char[] pass) throws Exception {
+            Connection connection = null;
+            Session session = null;
+            try {
+                long t0 = WriterMetrics.start();
+                connection = client.connect(host);
+                metrics.record(WriterMetrics.CONNECT, t0);
+                t0 = WriterMetrics.start();
+                session = connection.authenticate(new AuthenticationContext(user, pass, ""));
+                metrics.record(WriterMetrics.AUTHENTICATE, t0);
+                t0 = WriterMetrics.start();
+                DiskShare disk = (DiskShare) session.connectShare(share);
+                metrics.record(WriterMetrics.CONNECT_SHARE, t0);
+                return new SmbLink(connection, session, disk);
+            } catch (Exception e) {
+                // give back the connection lease; a transport failure also drops the socket
+                new SmbLink(connection, session, null).close(RetryPolicy.classify(e) == RetryPolicy.Kind.TRANSIENT);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            // closes every underlying connection
+            client.close();
+        }
+    }
+
+    private static final class SmbLink implements Link {
+        private final Connection connection;
+        private final Session session;
+        private final DiskShare disk;
+        private final ShareFs fs;
+
+        SmbLink(Connection connection, Session session, DiskShare disk) {
+            this.connection = connection;
+            this.session = session;
+            this.disk = disk;
+            this.fs = disk == null ? null : new SmbShareFs(disk);
+        }
+
+        @Override
+        public ShareFs fs() {
+            return fs;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return connection != null && connection.isConnected() && disk != null && disk.isConnected();
+        }
+
+        @Override
+        public void close(boolean force) {
+            if (connection == null) return;
+            if (force) {
+                // the transport is gone: a tree disconnect or logoff would only time out
+                try { connection.close(true); } catch (Exception e) { /* ignore */ }
+                return;
+            }
+            try { if (disk != null) disk.close(); } catch (Exception e) { /* ignore */ }
+            try { if (session != null) session.close(); } catch (Exception e) { /* ignore */ }
+            try { connection.close(); } catch (Exception e) { /* ignore */ }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.hipo.suite.smb;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumSet;
+
+/** ShareFs over a connected smbj DiskShare. */
+final class SmbShareFs implements ShareFs {
+    private final DiskShare disk;
+
+    SmbShareFs(DiskShare disk) {
+        this.disk = disk;
+    }
+
+    @Override
+    public boolean fileExists(String path) {
+        return disk.fileExists(path);
+    }
+
+    @Override
+    public boolean folderExists(String path) {
+        return disk.folderExists(path);
+    }
+
+    @Override
+    public void mkdir(String path) {
+        disk.mkdir(path);
+    }
+
+    @Override
+    public long size(String path) {
+        return disk.getFileInformation(path, FileStandardInformation.class).getEndOfFile();
+    }
+
+    @Override
+    public Handle open(String path, Mode mode) {
+        EnumSet<AccessMask> access;
+        SMB2CreateDisposition disposition;
+        switch (mode) {
+            case READ:
+                access = EnumSet.of(AccessMask.FILE_READ_DATA, AccessMask.FILE_READ_ATTRIBUTES);
+                disposition = SMB2CreateDisposition.FILE_OPEN;
+                break;
+            case APPEND:
+                // read-attributes: the append stream starts at the queried end of file
+                access = EnumSet.of(AccessMask.FILE_APPEND_DATA, AccessMask.FILE_WRITE_DATA, AccessMask.FILE_READ_ATTRIBUTES);
+                disposition = SMB2CreateDisposition.FILE_OPEN_IF;
+                break;
+            case REPLACE:
+                access = EnumSet.of(AccessMask.FILE_WRITE_DATA);
+                disposition = SMB2CreateDisposition.FILE_OVERWRITE_IF;
+                break;
+            case READ_WRITE:
+                access = EnumSet.of(AccessMask.FILE_READ_DATA, AccessMask.FILE_WRITE_DATA, AccessMask.FILE_READ_ATTRIBUTES);
+                disposition = SMB2CreateDisposition.FILE_OPEN_IF;
+                break;
+            default:
+                access = EnumSet.of(AccessMask.FILE_READ_DATA, AccessMask.FILE_WRITE_DATA, AccessMask.FILE_READ_ATTRIBUTES, AccessMask.DELETE);
+                disposition = SMB2CreateDisposition.FILE_CREATE;
+                break;
+        }
+        return new SmbHandle(disk.openFile(path, access, null, SMB2ShareAccess.ALL, disposition, null));
+    }
+
+    private static final class SmbHandle implements Handle {
+        private final File file;
+
+        SmbHandle(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public long size() {
+            return file.getFileInformation(FileStandardInformation.class).getEndOfFile();
+        }
+
+        @Override
+        public int read(byte[] buf, long fileOffset, int off, int len) {
+            return file.read(buf, fileOffset, off, len);
+        }
+
+        @Override
+        public void write(byte[] buf, long fileOffset, int off, int len) {
+            file.write(buf, fileOffset, off, len);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return file.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream(boolean append) {
+            return file.getOutputStream(append);
+        }
+
+        @Override
+        public void setLength(long length) {
+            file.setLength(length);
+        }
+
+        @Override
+        public void flush() {
+            file.flush();
+        }
+
+        @Override
+        public void copyTo(Handle dest) throws Exception {
+            file.remoteCopyTo(((SmbHandle) dest).file);
+        }
+
+        @Override
+        public void rename(String target, boolean replace) {
+            file.rename(target, replace);
+        }
+
+        @Override
+        public void deleteOnClose() {
+            file.deleteOnClose();
+        }
+
+        @Override
+        public void close() {
+            file.close();
+        }
+    }
+}
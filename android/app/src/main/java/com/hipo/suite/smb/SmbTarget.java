@@ -0,0 +1,44 @@
+package com.hipo.suite.smb;
+
+/**
+ * Parsed form of an smb://host/share/path/to/file.csv url.
+ */
+final class SmbTarget {
+    final String host;
+    final String share;
+    final String relPath;
+    // parent folder of relPath ("" when the file lives at the share root)
+    final String parent;
+
+    private SmbTarget(String host, String share, String relPath) {
+        this.host = host;
+        this.share = share;
+        this.relPath = relPath;
+        int lastSlash = relPath.lastIndexOf('/');
+        this.parent = lastSlash > 0 ? relPath.substring(0, lastSlash) : "";
+    }
+
+    static SmbTarget parse(String url) {
+        String without = url.replaceFirst("^smb://", "");
+        String[] parts = without.split("/", 3);
+        String host = parts[0];
+        String share = parts.length>1?parts[1]:"";
+        String relPath = parts.length>2?parts[2]:"";
+        return new SmbTarget(host, share, relPath);
+    }
+
+    // Another path on the same share
+    SmbTarget withPath(String relPath) {
+        return new SmbTarget(host, share, relPath);
+    }
+
+    // Path of a sibling file placed in the same folder as the target
+    String sibling(String name) {
+        return parent.isEmpty() ? name : parent + "/" + name;
+    }
+
+    @Override
+    public String toString() {
+        return "smb://" + host + "/" + share + "/" + relPath;
+    }
+}
@@ -1,56 +1,206 @@
 package com.hipo.suite.smb;
 
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.util.Log;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
+import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.JSObject;
+import com.getcapacitor.JSArray;
+import org.json.JSONArray;
 
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.EnumSet;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.security.KeyStore;
-import java.security.SecureRandom;
-import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
-
-import com.hierynomus.msdtyp.AccessMask;
-import com.hierynomus.mssmb2.SMB2ShareAccess;
-import com.hierynomus.mssmb2.SMB2CreateDisposition;
-
-// jcifs-ng imports
-import com.hierynomus.smbj.SMBClient;
-import com.hierynomus.smbj.auth.AuthenticationContext;
-import com.hierynomus.smbj.connection.Connection;
-import com.hierynomus.smbj.session.Session;
-import com.hierynomus.smbj.share.DiskShare;
-import com.hierynomus.smbj.share.File;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
-import org.apache.poi.poifs.crypt.EncryptionInfo;
-import org.apache.poi.poifs.crypt.EncryptionMode;
-import org.apache.poi.poifs.crypt.Encryptor;
 
 @CapacitorPlugin(name = "SmbWriter")
 public class SmbWriter extends Plugin {
+    private static final long JOURNAL_FLUSH_INTERVAL_S = 30;
+    private static final long AUDIT_FLUSH_INTERVAL_S = 10;
+    private static final long MANIFEST_FLUSH_INTERVAL_S = 30;
+
+    // Long-lived SMB sessions shared by every write issued through this plugin instance
+    private SmbConnectionPool pool;
+    // Serialises writes per target over a bounded pool
+    private final WriteScheduler scheduler = new WriteScheduler();
+    // Phase timers and counters behind getMetrics()
+    private final WriterMetrics metrics = new WriterMetrics();
+    // PBKDF2 results for passphrase mode, and KeyStore handles by alias
+    private final KeyMaterialCache keyCache = new KeyMaterialCache();
+    private final Map<String, SecretKey> keystoreKeys = new ConcurrentHashMap<>();
+    // Durable queue of rows that have not reached the share yet
+    private WriteJournal journal;
+    private ScheduledExecutorService flusher;
+    // journal records currently handed to the scheduler
+    private final Set<Long> inFlight = new HashSet<>();
+    // coalesced, network-aware journal replay, and the callback that feeds it
+    private JournalSync sync;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    // journaled audit_access_log.csv entries waiting to be appended to the share
+    private AuditLog audit;
+    // Partition parts and manifests for partitionByDay / partitionMaxBytes
+    private final Partitioner partitions = new Partitioner();
+    // Builds and writes the bytes for each batch (CSV, encrypted CSV, XLSX parts)
+    private final RowCommitter committer = new RowCommitter(metrics, keyCache, this::getOrCreateKey, partitions,
+            (msg, e) -> Log.w("SmbWriter", msg, e));
+    // Failure classification, backoff and per-host circuit breakers
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    // periodic metrics dump to files/smb-metrics.json, when enabled
+    private ScheduledFuture<?> metricsDump;
+
     @Override
     public void load() {
-        // no-op
+        pool = new SmbConnectionPool(metrics);
+        try {
+            journal = new WriteJournal(new java.io.File(getContext().getFilesDir(), "smb-journal"));
+        } catch (Exception e) {
+            Log.e("SmbWriter", "could not open write journal", e);
+        }
+        try {
+            audit = new AuditLog(new WriteJournal(new java.io.File(getContext().getFilesDir(), "smb-audit")));
+        } catch (Exception e) {
+            Log.e("SmbWriter", "could not open audit journal, audit entries will not be recorded", e);
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SmbWriter-journal");
+            t.setDaemon(true);
+            return t;
+        });
+        sync = new JournalSync(new JournalSync.Planner() {
+            @Override
+            public List<JournalBatch> plan(int maxBatchRows) {
+                return planReplay(maxBatchRows);
+            }
+
+            @Override
+            public int pending() {
+                return journal != null ? journal.pendingCount() : 0;
+            }
+        }, p -> notifyListeners("syncProgress", toJs(p)), (msg, e) -> Log.w("SmbWriter", msg, e));
+        JournalReplayWorker.attach(sync);
+        watchNetwork();
+        flusher.scheduleWithFixedDelay(() -> sync.request("timer"), 5, JOURNAL_FLUSH_INTERVAL_S, TimeUnit.SECONDS);
+        flusher.scheduleWithFixedDelay(this::flushAudit, AUDIT_FLUSH_INTERVAL_S, AUDIT_FLUSH_INTERVAL_S, TimeUnit.SECONDS);
+        flusher.scheduleWithFixedDelay(this::flushManifests, MANIFEST_FLUSH_INTERVAL_S, MANIFEST_FLUSH_INTERVAL_S, TimeUnit.SECONDS);
+    }
+
+    // Drain what is pending now, and hand the rest to WorkManager so replay keeps
+    // going (and resumes with the network) while the app sits in the background
+    @Override
+    protected void handleOnPause() {
+        if (sync != null) sync.request("background");
+        scheduleBackgroundReplay();
+    }
+
+    private void scheduleBackgroundReplay() {
+        if (journal == null || journal.pendingCount() == 0) return;
+        try {
+            JournalReplayWorker.schedule(getContext());
+        } catch (Exception e) {
+            // in-process triggers still drain the journal while the app runs
+            Log.w("SmbWriter", "could not schedule background replay", e);
+        }
+    }
+
+    @Override
+    protected void handleOnResume() {
+        if (sync != null) sync.request("resume");
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        if (networkCallback != null) {
+            try {
+                connectivity().unregisterNetworkCallback(networkCallback);
+            } catch (Exception e) {
+                Log.w("SmbWriter", "could not unregister network callback", e);
+            }
+            networkCallback = null;
+        }
+        if (sync != null) {
+            JournalReplayWorker.detach(sync);
+            sync.close();
+        }
+        scheduler.shutdown();
+        if (flusher != null) {
+            // the last manifest save needs the share: it runs on the flusher thread, which
+            // then releases the pool; shutdown() cancels the periodic tasks
+            flusher.execute(this::saveManifestsAndClosePool);
+            flusher.shutdown();
+        } else if (pool != null) {
+            pool.close();
+        }
+        keyCache.wipe();
+        try {
+            if (journal != null) journal.close();
+            // unflushed audit entries stay journaled for the next start
+            if (audit != null) audit.close();
+        } catch (Exception e) {
+            Log.w("SmbWriter", "could not close write journal", e);
+        }
+    }
+
+    private ConnectivityManager connectivity() {
+        return (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    // Gate journal sync on the default network; SMB targets are usually on a LAN
+    // without internet, so any connected network counts, validated or not
+    private void watchNetwork() {
+        try {
+            ConnectivityManager cm = connectivity();
+            sync.setOnline(cm.getActiveNetwork() != null);
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    sync.setOnline(true);
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    sync.setOnline(false);
+                    // WorkManager wakes the replay when a network is back, even in the background
+                    scheduleBackgroundReplay();
+                }
+            };
+            cm.registerDefaultNetworkCallback(networkCallback);
+        } catch (Exception e) {
+            // without connectivity events the timer and enqueue triggers still drain the journal
+            Log.w("SmbWriter", "network callback unavailable", e);
+            networkCallback = null;
+            sync.setOnline(true);
+        }
     }
 
     // Helper: obtain or create an AES key in Android KeyStore with given alias
     private SecretKey getOrCreateKey(String alias) throws Exception {
+        SecretKey cached = keystoreKeys.get(alias);
+        if (cached != null) return cached;
+        SecretKey key = loadOrCreateKey(alias);
+        keystoreKeys.put(alias, key);
+        return key;
+    }
+
+    private SecretKey loadOrCreateKey(String alias) throws Exception {
         KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
         keyStore.load(null);
         if (keyStore.containsAlias(alias)) {
@@ -79,298 +229,607 @@ public class SmbWriter extends Plugin {
         }
     }
 
-    // Encrypt input with AES-GCM using SecretKey from KeyStore. Returns: IV (12 bytes) + ciphertext + tag
-    private byte[] encryptAesGcm(SecretKey key, byte[] plain) throws Exception {
-        SecureRandom random = new SecureRandom();
-        byte[] iv = new byte[12];
-        random.nextBytes(iv);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-        byte[] cipherText = cipher.doFinal(plain);
-        // build output: magic(8) + version(1) + iv(12) + cipherText
-        byte[] magic = "HIPOSENC".getBytes(StandardCharsets.US_ASCII);
-        byte version = 0x01;
-        byte[] out = new byte[magic.length + 1 + iv.length + cipherText.length];
-        int pos = 0;
-        System.arraycopy(magic, 0, out, pos, magic.length); pos += magic.length;
-        out[pos++] = version;
-        System.arraycopy(iv, 0, out, pos, iv.length); pos += iv.length;
-        System.arraycopy(cipherText, 0, out, pos, cipherText.length);
-        return out;
+    /**
+     * Check a HIPOSENC v3 file on the share: { ok, indexed, frames, problem? }.
+     * Takes url/user/pass plus passphrase or keyAlias, like writeLine.
+     */
+    @PluginMethod
+    public void verifyEncrypted(PluginCall call) {
+        final WriteOptions o = readOptions(call.getData());
+        if (o.url == null) {
+            call.reject("missing url");
+            return;
+        }
+        schedule(call, o, () -> {
+            SmbTarget t = SmbTarget.parse(o.url);
+            try (SmbConnectionPool.Lease lease = pool.acquire(t.host, t.share, o.user, o.pass);
+                 ShareFs.Handle f = lease.fs().open(t.relPath, ShareFs.Mode.READ)) {
+                HiposEncV3.Reader reader = new HiposEncV3.Reader(new ShareFileStore(f), committer.keySource(o));
+                String problem = reader.verify();
+                JSObject ret = new JSObject();
+                ret.put("ok", problem == null);
+                ret.put("indexed", reader.indexed);
+                ret.put("frames", reader.frames.size());
+                if (problem != null) ret.put("problem", problem);
+                call.resolve(ret);
+            } catch (Exception e) {
+                call.reject("verify failed: " + e.getMessage());
+            }
+        });
+    }
+
+    // Forget cached passphrase-derived keys (zeroed) and KeyStore handles
+    @PluginMethod
+    public void wipeKeys(PluginCall call) {
+        keyCache.wipe();
+        keystoreKeys.clear();
+        call.resolve();
+    }
+
+    // Connection pool counters: hits, misses, reconnects, evictions, open
+    @PluginMethod
+    public void getPoolStats(PluginCall call) {
+        JSObject ret = new JSObject();
+        for (Map.Entry<String, Long> e : pool.stats().entrySet()) {
+            ret.put(e.getKey(), e.getValue());
+        }
+        call.resolve(ret);
+    }
+
+    // Queued writes: { pending, maxPending, targets: { "smb://host/share/path": n } }
+    @PluginMethod
+    public void getQueueDepth(PluginCall call) {
+        JSObject targets = new JSObject();
+        for (Map.Entry<String, Integer> e : scheduler.depthByTarget().entrySet()) {
+            targets.put(e.getKey(), e.getValue());
+        }
+        JSObject ret = new JSObject();
+        ret.put("pending", scheduler.depth());
+        ret.put("maxPending", scheduler.maxPending());
+        ret.put("targets", targets);
+        call.resolve(ret);
+    }
+
+    // Drop queued (not yet started) writes for { url }; their calls reject with CANCELLED
+    @PluginMethod
+    public void cancelPending(PluginCall call) {
+        String url = call.getString("url");
+        if (url == null) {
+            call.reject("missing url");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("cancelled", scheduler.cancelPending(SmbTarget.parse(url).toString()));
+        call.resolve(ret);
+    }
+
+    /**
+     * Durably journal a row (same options as writeLine) and return immediately.
+     * The background flusher replays pending rows into the share in batches and
+     * drops them from the journal once the write is acknowledged.
+     */
+    @PluginMethod
+    public void enqueue(PluginCall call) {
+        String url = call.getString("url");
+        if (url == null || (call.getString("line") == null && call.getArray("fields") == null)) {
+            call.reject("missing url or line/fields");
+            return;
+        }
+        if (journal == null) {
+            call.reject("journal unavailable");
+            return;
+        }
+        try {
+            long seq = journal.append(call.getData().toString().getBytes(StandardCharsets.UTF_8));
+            JSObject ret = new JSObject();
+            ret.put("seq", seq);
+            ret.put("pending", journal.pendingCount());
+            call.resolve(ret);
+        } catch (Exception e) {
+            Log.e("SmbWriter", "journal append failed", e);
+            call.reject("enqueue failed: " + e.getMessage());
+            return;
+        }
+        sync.request("enqueue");
+    }
+
+    // { pending, inFlight, segments, bytes }
+    @PluginMethod
+    public void getJournalStatus(PluginCall call) {
+        if (journal == null) {
+            call.reject("journal unavailable");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("pending", journal.pendingCount());
+        synchronized (inFlight) {
+            ret.put("inFlight", inFlight.size());
+        }
+        ret.put("segments", journal.segmentCount());
+        ret.put("bytes", journal.diskBytes());
+        call.resolve(ret);
+    }
+
+    // Trigger a replay now instead of waiting for the next flush interval
+    @PluginMethod
+    public void flushJournal(PluginCall call) {
+        sync.request("manual");
+        call.resolve();
+    }
+
+    /**
+     * Background sync state: { online, running, pending, inFlight, flushed, failed, reason }.
+     * The same object is emitted as the "syncProgress" event after every batch.
+     */
+    @PluginMethod
+    public void getSyncStatus(PluginCall call) {
+        call.resolve(toJs(sync.progress()));
+    }
+
+    private static JSObject toJs(JournalSync.Progress p) {
+        JSObject ret = new JSObject();
+        ret.put("online", p.online);
+        ret.put("running", p.running);
+        ret.put("pending", p.pending);
+        ret.put("inFlight", p.inFlight);
+        ret.put("flushed", p.flushed);
+        ret.put("failed", p.failed);
+        ret.put("reason", p.reason);
+        return ret;
+    }
+
+    /**
+     * Phase latency histograms and counters since start or the last reset.
+     * Pass { reset: true } to start a new measurement window after reading.
+     */
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        try {
+            JSObject ret = new JSObject(metrics.toJson());
+            JSObject breakers = new JSObject();
+            for (Map.Entry<String, String> e : retryPolicy.breakerStates().entrySet()) {
+                breakers.put(e.getKey(), e.getValue());
+            }
+            ret.put("breakers", breakers);
+            if (call.getBoolean("reset", false)) metrics.reset();
+            call.resolve(ret);
+        } catch (Exception e) {
+            call.reject("metrics unavailable: " + e.getMessage());
+        }
+    }
+
+    // { intervalSeconds }: dump metrics to files/smb-metrics.json periodically; 0 turns it off
+    @PluginMethod
+    public void setMetricsDump(PluginCall call) {
+        int interval = call.getInt("intervalSeconds", 0);
+        synchronized (this) {
+            if (metricsDump != null) metricsDump.cancel(false);
+            metricsDump = null;
+            if (interval > 0) {
+                java.io.File out = new java.io.File(getContext().getFilesDir(), "smb-metrics.json");
+                metricsDump = flusher.scheduleWithFixedDelay(() -> {
+                    try {
+                        metrics.dump(out);
+                    } catch (Exception e) {
+                        Log.w("SmbWriter", "metrics dump failed", e);
+                    }
+                }, interval, interval, TimeUnit.SECONDS);
+            }
+        }
+        call.resolve();
+    }
+
+    // Append journaled audit entries now: { pending } as of the request
+    @PluginMethod
+    public void flushAuditLog(PluginCall call) {
+        if (audit == null) {
+            call.reject("audit journal unavailable");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("pending", audit.pending());
+        flusher.execute(this::flushAudit);
+        call.resolve(ret);
     }
 
-    // Derive AES key from passphrase using PBKDF2-HMAC-SHA256
-    private SecretKey deriveKeyFromPassphrase(String passphrase, byte[] salt) throws Exception {
-        javax.crypto.SecretKeyFactory skf = javax.crypto.SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        javax.crypto.spec.PBEKeySpec spec = new javax.crypto.spec.PBEKeySpec(passphrase.toCharArray(), salt, 100000, 256);
-        byte[] keyBytes = skf.generateSecret(spec).getEncoded();
-        javax.crypto.spec.SecretKeySpec sk = new javax.crypto.spec.SecretKeySpec(keyBytes, "AES");
-        return sk;
-    }
-
-    // Encrypt with salt included in header: magic|ver|salt(16)|iv(12)|cipher
-    private byte[] encryptAesGcmWithSalt(SecretKey key, byte[] plain, byte[] salt) throws Exception {
-        SecureRandom random = new SecureRandom();
-        byte[] iv = new byte[12];
-        random.nextBytes(iv);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-        byte[] cipherText = cipher.doFinal(plain);
-        byte[] magic = "HIPOSENC".getBytes(StandardCharsets.US_ASCII);
-        byte version = 0x02; // version 2 includes salt
-        byte[] out = new byte[magic.length + 1 + salt.length + iv.length + cipherText.length];
-        int pos = 0;
-        System.arraycopy(magic, 0, out, pos, magic.length); pos += magic.length;
-        out[pos++] = version;
-        System.arraycopy(salt, 0, out, pos, salt.length); pos += salt.length;
-        System.arraycopy(iv, 0, out, pos, iv.length); pos += iv.length;
-        System.arraycopy(cipherText, 0, out, pos, cipherText.length);
+    // Hand every journaled audit batch to the scheduler; failed batches stay journaled for the next run
+    private void flushAudit() {
+        if (audit == null) return;
+        List<AuditLog.Batch> batches;
+        try {
+            batches = audit.drain();
+        } catch (Exception e) {
+            Log.w("SmbWriter", "could not read audit journal", e);
+            return;
+        }
+        for (AuditLog.Batch b : batches) {
+            boolean queued = scheduler.submit(b.target.toString(), () -> {
+                boolean written = false;
+                try {
+                    writeAudit(b);
+                    written = true;
+                } catch (Exception e) {
+                    Log.w("SmbWriter", "audit flush failed for " + b.lines.size() + " entries, will retry", e);
+                } finally {
+                    auditDone(b, written);
+                }
+            }, () -> auditDone(b, false));
+            if (!queued) auditDone(b, false);
+        }
+    }
+
+    private void auditDone(AuditLog.Batch b, boolean written) {
+        try {
+            audit.done(b, written);
+        } catch (Exception e) {
+            Log.w("SmbWriter", "audit journal ack failed", e);
+        }
+    }
+
+    // Save partition manifests whose counts changed; failed saves are retried on the next run
+    private void flushManifests() {
+        for (Map.Entry<Partitioner.Manifest, Map<String, Partitioner.ManifestEntry>> entry : partitions.takeDirty()) {
+            Partitioner.Manifest m = entry.getKey();
+            Map<String, Partitioner.ManifestEntry> changes = entry.getValue();
+            boolean queued = scheduler.submit(m.target.toString(), () -> {
+                try {
+                    writeManifest(m, changes);
+                } catch (Exception e) {
+                    Log.w("SmbWriter", "manifest save failed for " + m.target + ", will retry", e);
+                    partitions.restore(m, changes);
+                }
+            }, () -> partitions.restore(m, changes));
+            if (!queued) partitions.restore(m, changes);
+        }
+    }
+
+    // Last manifest save on shutdown, on the flusher thread; what fails here is lost until the next write
+    private void saveManifestsAndClosePool() {
+        for (Map.Entry<Partitioner.Manifest, Map<String, Partitioner.ManifestEntry>> entry : partitions.takeDirty()) {
+            try {
+                writeManifest(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                Log.w("SmbWriter", "could not save manifest " + entry.getKey().target + " on shutdown", e);
+            }
+        }
+        if (pool != null) pool.close();
+    }
+
+    // Save one manifest's changes on the share it lives on (see Partitioner.save)
+    private void writeManifest(Partitioner.Manifest m, Map<String, Partitioner.ManifestEntry> changes) throws Exception {
+        SmbConnectionPool.Lease lease = pool.acquire(m.target.host, m.target.share, m.user, m.pass);
+        try {
+            Partitioner.save(lease.fs(), committer, m, changes);
+            lease.metadata().fileCreated(m.target.relPath);
+        } catch (Exception e) {
+            lease.metadata().invalidate(e);
+            throw e;
+        } finally {
+            lease.close();
+        }
+    }
+
+    private void writeAudit(AuditLog.Batch b) throws Exception {
+        SmbConnectionPool.Lease lease = pool.acquire(b.target.host, b.target.share, b.user, b.pass);
+        long t0 = WriterMetrics.start();
+        try {
+            AuditLog.write(lease.fs(), b);
+            metrics.record(WriterMetrics.AUDIT_FLUSH, t0);
+        } catch (Exception e) {
+            lease.metadata().invalidate(e);
+            RetryPolicy.Kind kind = RetryPolicy.classify(e);
+            if (kind != RetryPolicy.Kind.CONTENTION) lease.invalidate(kind == RetryPolicy.Kind.TRANSIENT);
+            throw e;
+        } finally {
+            lease.close();
+        }
+    }
+
+    // Rows from the journal that share the same destination and options
+    private final class JournalBatch implements JournalSync.Batch {
+        final WriteOptions o;
+        final List<Long> seqs = new ArrayList<>();
+        final List<CsvCodec.Row> rows = new ArrayList<>();
+
+        JournalBatch(WriteOptions o) {
+            this.o = o;
+        }
+
+        @Override
+        public String target() {
+            return SmbTarget.parse(o.url).toString();
+        }
+
+        @Override
+        public int rows() {
+            return rows.size();
+        }
+
+        @Override
+        public boolean submit(Consumer<Boolean> done) {
+            synchronized (inFlight) {
+                inFlight.addAll(seqs);
+            }
+            Runnable release = () -> {
+                synchronized (inFlight) {
+                    inFlight.removeAll(seqs);
+                }
+            };
+            boolean queued = scheduler.submit(target(), () -> {
+                boolean ok = false;
+                try {
+                    commitWithRetries(o, rows);
+                    journal.ack(seqs);
+                    ok = true;
+                } catch (Exception e) {
+                    Log.w("SmbWriter", "journal replay failed for " + rows.size() + " rows, will retry", e);
+                } finally {
+                    release.run();
+                    done.accept(ok);
+                }
+            }, () -> {
+                release.run();
+                done.accept(false);
+            });
+            if (!queued) release.run();
+            return queued;
+        }
+    }
+
+    /**
+     * Group pending journal records that are not already being written into batches
+     * of at most maxBatchRows per destination, in journal order. Records that cannot
+     * be parsed are acknowledged (dropped) here.
+     */
+    private List<JournalBatch> planReplay(int maxBatchRows) {
+        List<JournalBatch> out = new ArrayList<>();
+        if (journal == null) return out;
+        Map<String, JournalBatch> open = new LinkedHashMap<>();
+        List<Long> unreadable = new ArrayList<>();
+        synchronized (inFlight) {
+            for (WriteJournal.Record r : journal.pending()) {
+                if (inFlight.contains(r.seq)) continue;
+                try {
+                    JSObject data = new JSObject(new String(r.payload, StandardCharsets.UTF_8));
+                    WriteOptions o = readOptions(data);
+                    JSONArray fields = data.optJSONArray("fields");
+                    CsvCodec.Row row = toRow(fields != null ? fields : data.getString("line", ""));
+                    // one batch per partition day, so a replay never writes to two day files
+                    String key = o.partitionByDay ? o.batchKey() + "|" + Partitioner.dayOf(row) : o.batchKey();
+                    JournalBatch b = open.get(key);
+                    if (b == null || b.rows.size() >= maxBatchRows) {
+                        b = new JournalBatch(o);
+                        open.put(key, b);
+                        out.add(b);
+                    }
+                    b.seqs.add(r.seq);
+                    b.rows.add(row);
+                } catch (Exception e) {
+                    Log.w("SmbWriter", "dropping unreadable journal record " + r.seq, e);
+                    unreadable.add(r.seq);
+                }
+            }
+        }
+        try {
+            journal.ack(unreadable);
+        } catch (Exception e) {
+            Log.w("SmbWriter", "journal ack failed", e);
+        }
         return out;
     }
 
-    @SuppressWarnings({"unused"})
+    // Queue a write behind earlier writes to the same target; rejects with QUEUE_FULL under backpressure
+    private void schedule(PluginCall call, WriteOptions o, Runnable work) {
+        String key = SmbTarget.parse(o.url).toString();
+        boolean queued = scheduler.submit(key, work, () -> call.reject("write cancelled", "CANCELLED"));
+        if (!queued) {
+            call.reject("write queue full (" + scheduler.maxPending() + " pending)", "QUEUE_FULL");
+        }
+    }
+
+    // Read the options shared by writeLine, writeLines and journaled records
+    private WriteOptions readOptions(JSObject data) {
+        WriteOptions o = new WriteOptions();
+        o.url = data.getString("url");
+        o.user = data.getString("user", "");
+        o.pass = data.getString("pass", "");
+        o.retries = data.getInteger("retries", 3);
+        o.retryDelayMs = data.getInteger("retryDelayMs", 1000);
+        o.atomic = data.getBoolean("atomic", true);
+        o.encrypt = data.getBoolean("encrypt", false);
+        o.keyAlias = data.getString("keyAlias", "hipo_smb_key");
+        o.passphrase = data.getString("passphrase", null);
+        o.protectExcel = data.getBoolean("protectExcel", false);
+        o.excelPassword = data.getString("excelPassword", null);
+        o.excelMaxRows = data.getInteger("excelMaxRows", XlsxAppender.DEFAULT_MAX_ROWS);
+        o.encFormat = data.getInteger("encFormat", 2);
+        o.partitionByDay = data.getBoolean("partitionByDay", false);
+        o.partitionMaxBytes = data.getInteger("partitionMaxBytes", 0);
+        o.audit = data.getBoolean("audit", true);
+        return o;
+    }
+
+    // A row from the bridge: an array of field values, or a legacy pre-joined CSV line
+    private static CsvCodec.Row toRow(Object v) {
+        if (v instanceof JSONArray) {
+            JSONArray a = (JSONArray) v;
+            String[] fields = new String[a.length()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = a.isNull(i) ? "" : String.valueOf(a.opt(i));
+            }
+            return CsvCodec.Row.of(fields);
+        }
+        if (v instanceof String) {
+            return CsvCodec.fromLine((String) v);
+        }
+        return null;
+    }
+
+    /**
+     * Append one row. Pass it as fields (an array of values, encoded per RFC 4180
+     * so commas and quotes survive) or as a pre-joined CSV line.
+     */
+    @PluginMethod
     public void writeLine(PluginCall call) {
-        final String url = call.getString("url"); // smb://host/share/path/file.csv
-        final String user = call.getString("user", "");
-        final String pass = call.getString("pass", "");
-        final String line = call.getString("line", "");
-    final int retries = call.getInt("retries", 3);
-    final int retryDelayMs = call.getInt("retryDelayMs", 1000);
-    final boolean atomic = call.getBoolean("atomic", true);
-    final boolean encrypt = call.getBoolean("encrypt", false);
-    final String keyAlias = call.getString("keyAlias", "hipo_smb_key");
-    final String passphrase = call.getString("passphrase", null);
-    final boolean protectExcel = call.getBoolean("protectExcel", false);
-    final String excelPassword = call.getString("excelPassword", null);
-
-        if (url == null || line == null) {
+        final WriteOptions o = readOptions(call.getData());
+        JSArray fields = call.getArray("fields");
+        final CsvCodec.Row row = toRow(fields != null ? fields : call.getString("line", ""));
+
+        if (o.url == null || row == null) {
             call.reject("missing url or line");
             return;
         }
 
-        new Thread(() -> {
-            int attempt = 0;
-            Exception lastEx = null;
-            while (attempt < retries) {
+        schedule(call, o, () -> {
+            try {
+                commitWithRetries(o, Collections.singletonList(row));
+                call.resolve();
+            } catch (Exception e) {
+                call.reject("write failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Write many rows to the same target in one open/append/flush cycle.
+     * Rows come as records (arrays of field values) or as lines (pre-joined CSV).
+     * Resolves with { written, failed, results: [{ index, ok, error? }] } so the
+     * caller can drop exactly the rows that reached the share.
+     */
+    @PluginMethod
+    public void writeLines(PluginCall call) {
+        final WriteOptions o = readOptions(call.getData());
+        JSArray records = call.getArray("records");
+        final JSArray lines = records != null ? records : call.getArray("lines");
+
+        if (o.url == null || lines == null) {
+            call.reject("missing url or records/lines");
+            return;
+        }
+
+        schedule(call, o, () -> {
+            final List<CsvCodec.Row> rows = new ArrayList<>();
+            final List<Integer> rowIndex = new ArrayList<>();
+            final String[] errors = new String[lines.length()];
+            for (int i = 0; i < lines.length(); i++) {
+                CsvCodec.Row row = toRow(lines.opt(i));
+                if (row != null) {
+                    rows.add(row);
+                    rowIndex.add(i);
+                } else {
+                    errors[i] = "row is not a field array or string";
+                }
+            }
+            // rows created on different days go to different day files: one commit per day
+            Collection<List<Integer>> groups = o.partitionByDay
+                    ? Partitioner.byDay(rows).values()
+                    : rows.isEmpty() ? Collections.emptyList() : Collections.singletonList(allIndexes(rows.size()));
+            for (List<Integer> group : groups) {
+                List<CsvCodec.Row> part = new ArrayList<>(group.size());
+                for (int k : group) part.add(rows.get(k));
+                try {
+                    commitWithRetries(o, part);
+                } catch (Exception e) {
+                    for (int k : group) errors[rowIndex.get(k)] = "write failed: " + e.getMessage();
+                }
+            }
+            JSArray results = new JSArray();
+            int written = 0;
+            for (int i = 0; i < errors.length; i++) {
+                JSObject r = new JSObject();
+                r.put("index", i);
+                r.put("ok", errors[i] == null);
+                if (errors[i] != null) {
+                    r.put("error", errors[i]);
+                } else {
+                    written++;
+                }
+                results.put(r);
+            }
+            JSObject ret = new JSObject();
+            ret.put("written", written);
+            ret.put("failed", errors.length - written);
+            ret.put("results", results);
+            call.resolve(ret);
+        });
+    }
+
+    private static List<Integer> allIndexes(int n) {
+        List<Integer> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) out.add(i);
+        return out;
+    }
+
+    /**
+     * Run RowCommitter.commit against a pooled share. With partitionByDay all rows
+     * must belong to one day (see Partitioner.byDay); the first row picks the file.
+     * Failures are classified by RetryPolicy: fatal ones (auth, permissions, bad path)
+     * fail at once, contention (file locked by another client) retries on the same
+     * session, anything else reconnects first.
+     * Delays back off exponentially from retryDelayMs with jitter, and the host's
+     * circuit breaker short-circuits writes while the server keeps failing
+     * transiently; fatal and contention failures do not count toward it.
+     */
+    private void commitWithRetries(WriteOptions o, List<CsvCodec.Row> rows) throws Exception {
+        int attempt = 0;
+        Exception lastEx = null;
+        SmbTarget t = SmbTarget.parse(o.url);
+        // the partition day is fixed once per write so retries land in the same file
+        SmbTarget dest = o.partitioned() ? Partitioner.base(t, o.partitionByDay ? Partitioner.dayOf(rows.get(0)) : null) : t;
+        long t0 = WriterMetrics.start();
+        try (RowCommitter.Prepared prepared = new RowCommitter.Prepared()) {
+            while (attempt < o.retries) {
                 attempt++;
-                try (SMBClient client = new SMBClient()) {
-                    // parse smb url: smb://host/share/path/to/file.csv
-                    String without = url.replaceFirst("^smb://", "");
-                    String[] parts = without.split("/", 3);
-                    String host = parts[0];
-                    String share = parts.length>1?parts[1]:"";
-                    String relPath = parts.length>2?parts[2]:"";
-
-                    Log.i("SmbWriter", "attempt " + attempt + " connecting to " + host + " share=" + share + " path=" + relPath);
-
-                    Connection connection = client.connect(host);
-                    AuthenticationContext ac = new AuthenticationContext(user, pass.toCharArray(), "");
-                    Session session = connection.authenticate(ac);
-                    try (DiskShare disk = (DiskShare) session.connectShare(share)) {
-                        // Ensure parent dirs exist
-                        String parent = "";
-                        int lastSlash = relPath.lastIndexOf('/');
-                        if (lastSlash > 0) {
-                            parent = relPath.substring(0, lastSlash);
-                            String[] folders = parent.split("/");
-                            String pathAcc = "";
-                            for (String fldr : folders) {
-                                pathAcc = pathAcc.isEmpty() ? fldr : pathAcc + "/" + fldr;
-                                if (!disk.folderExists(pathAcc)) {
-                                    disk.mkdir(pathAcc);
-                                }
-                            }
-                        }
-
-                        String target = relPath;
-                        String tmpName = relPath + ".tmp" + System.currentTimeMillis();
-
-                        // CSV header for initial file
-                        String csvHeader = "created_at,nombre,telefono,email,cp,localidad,calleNumero,motivo";
-                        boolean targetExists = disk.fileExists(target);
-
-                        byte[] toWrite = null;
-
-                        if (protectExcel) {
-                            // Build or update an XLSX workbook in memory
-                            XSSFWorkbook wb = null;
-                            try {
-                                if (targetExists) {
-                                    // read existing file into workbook
-                                    try (com.hierynomus.smbj.share.File fExisting = disk.openFile(target,
-                                            EnumSet.of(AccessMask.FILE_READ_DATA), null, SMB2ShareAccess.ALL,
-                                            SMB2CreateDisposition.FILE_OPEN, null)) {
-                                        InputStream is = fExisting.getInputStream();
-                                        wb = new XSSFWorkbook(is);
-                                        is.close();
-                                    } catch (Exception e) {
-                                        // fallback to new workbook
-                                        wb = new XSSFWorkbook();
-                                    }
-                                } else {
-                                    wb = new XSSFWorkbook();
-                                }
-
-                                Sheet sheet = null;
-                                if (wb.getNumberOfSheets() == 0) {
-                                    sheet = wb.createSheet("checkins");
-                                    Row header = sheet.createRow(0);
-                                    String[] cols = new String[]{"created_at","nombre","telefono","email","cp","localidad","calleNumero","motivo"};
-                                    for (int i=0;i<cols.length;i++) {
-                                        Cell c = header.createCell(i);
-                                        c.setCellValue(cols[i]);
-                                    }
-                                } else {
-                                    sheet = wb.getSheetAt(0);
-                                }
-
-                                int lastRow = sheet.getLastRowNum();
-                                int insertRow = targetExists && lastRow>0 ? lastRow+1 : (targetExists && lastRow==0 && sheet.getRow(0)!=null ? 1 : 1);
-                                Row r = sheet.createRow(insertRow);
-                                String[] csvParts = line.split(",", -1);
-                                for (int i=0;i<csvParts.length;i++) {
-                                    Cell c = r.createCell(i);
-                                    c.setCellValue(csvParts[i]);
-                                }
-
-                                // write workbook to byte[]
-                                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                                if (excelPassword != null && !excelPassword.isEmpty()) {
-                                    // Use POI encryptor to write a password-protected XLSX
-                                    POIFSFileSystem fs = new POIFSFileSystem();
-                                    EncryptionInfo info = new EncryptionInfo(EncryptionMode.standard);
-                                    Encryptor enc = info.getEncryptor();
-                                    enc.confirmPassword(excelPassword);
-                                    try (OutputStream os = enc.getDataStream(fs)) {
-                                        wb.write(os);
-                                    }
-                                    fs.writeFilesystem(bos);
-                                } else {
-                                    wb.write(bos);
-                                }
-                                toWrite = bos.toByteArray();
-                                wb.close();
-                            } catch (Exception e) {
-                                Log.e("SmbWriter", "failed building XLSX", e);
-                                throw e;
-                            }
-                        } else {
-                            // CSV/plain or encrypted CSV
-                            if (!targetExists) {
-                                toWrite = (csvHeader + "\n" + line + "\n").getBytes(StandardCharsets.UTF_8);
-                            } else {
-                                toWrite = (line + "\n").getBytes(StandardCharsets.UTF_8);
-                            }
-                            // if encryption requested, either use passphrase-derived key or KeyStore key
-                            if (encrypt) {
-                                try {
-                                    if (passphrase != null && !passphrase.isEmpty()) {
-                                        // derive key via PBKDF2 and include salt in header
-                                        SecureRandom rnd = new SecureRandom();
-                                        byte[] salt = new byte[16];
-                                        rnd.nextBytes(salt);
-                                        SecretKey sk = deriveKeyFromPassphrase(passphrase, salt);
-                                        toWrite = encryptAesGcmWithSalt(sk, toWrite, salt);
-                                    } else {
-                                        SecretKey sk = getOrCreateKey(keyAlias);
-                                        toWrite = encryptAesGcm(sk, toWrite);
-                                    }
-                                } catch (Exception e) {
-                                    Log.e("SmbWriter", "encryption failed", e);
-                                    throw e;
-                                }
-                            }
-                        }
-
-                        // ensure audit log exists (plaintext CSV) next to target
-                        try {
-                            String auditName = "audit_access_log.csv";
-                            String auditPath = (lastSlash > 0 ? parent + "/" : "") + auditName;
-                            if (!disk.fileExists(auditPath)) {
-                                byte[] logHeader = "timestamp,name,motivo\n".getBytes(StandardCharsets.UTF_8);
-                                try (com.hierynomus.smbj.share.File lf = disk.openFile(auditPath,
-                                        EnumSet.of(AccessMask.FILE_WRITE_DATA), null, SMB2ShareAccess.ALL,
-                                        SMB2CreateDisposition.FILE_CREATE, null)) {
-                                    OutputStream os2 = lf.getOutputStream();
-                                    os2.write(logHeader);
-                                    os2.flush();
-                                    os2.close();
-                                }
-                            }
-                        } catch (Exception e) {
-                            Log.w("SmbWriter", "could not ensure audit log", e);
-                        }
-
-                        if (atomic) {
-                            // write to temp file first, then rename
-                            try (com.hierynomus.smbj.share.File f = disk.openFile(tmpName,
-                                    EnumSet.of(AccessMask.FILE_WRITE_DATA), null, SMB2ShareAccess.ALL,
-                                    SMB2CreateDisposition.FILE_CREATE, null)) {
-                                OutputStream os = f.getOutputStream();
-                                os.write(toWrite);
-                                os.flush();
-                                os.close();
-                            }
-                            // rename temp -> target (overwrite if exists)
-                            // Move tmp -> target by copying bytes then removing the tmp file.
-                            try {
-                                if (disk.fileExists(target)) {
-                                    disk.rm(target);
-                                }
-                                try (com.hierynomus.smbj.share.File ftmp = disk.openFile(tmpName,
-                                        EnumSet.of(AccessMask.FILE_READ_DATA), null, SMB2ShareAccess.ALL,
-                                        SMB2CreateDisposition.FILE_OPEN, null);
-                                     com.hierynomus.smbj.share.File ftarget = disk.openFile(target,
-                                        EnumSet.of(AccessMask.FILE_WRITE_DATA), null, SMB2ShareAccess.ALL,
-                                        SMB2CreateDisposition.FILE_CREATE, null)) {
-                                    InputStream isTmp = ftmp.getInputStream();
-                                    OutputStream osTarget = ftarget.getOutputStream();
-                                    byte[] buffer = new byte[8192];
-                                    int r;
-                                    while ((r = isTmp.read(buffer)) != -1) {
-                                        osTarget.write(buffer, 0, r);
-                                    }
-                                    osTarget.flush();
-                                    isTmp.close();
-                                    osTarget.close();
-                                }
-                                // remove temporary file
-                                disk.rm(tmpName);
-                            } catch (Exception e) {
-                                throw e;
-                            }
-                        } else {
-                            // append directly
-                            try (com.hierynomus.smbj.share.File f = disk.openFile(target,
-                                    EnumSet.of(AccessMask.FILE_APPEND_DATA, AccessMask.FILE_WRITE_DATA), null, SMB2ShareAccess.ALL,
-                                    SMB2CreateDisposition.FILE_OPEN_IF, null)) {
-                                OutputStream os = f.getOutputStream();
-                                os.write(toWrite);
-                                os.flush();
-                            }
-                        }
-                    }
-                    // success
-                    call.resolve();
+                if (attempt > 1) metrics.retry();
+                retryPolicy.checkBreaker(t.host);
+                SmbConnectionPool.Lease lease = null;
+                RetryPolicy.Kind kind;
+                try {
+                    Log.i("SmbWriter", "attempt " + attempt + " connecting to " + t.host + " share=" + t.share + " path=" + t.relPath + " rows=" + rows.size());
+                    lease = pool.acquire(t.host, t.share, o.user, o.pass);
+                    committer.commit(lease.fs(), lease.metadata(), dest, rows, o, prepared);
+                    retryPolicy.onSuccess(t.host);
+                    metrics.record(WriterMetrics.TOTAL, t0);
+                    recordAudit(t, o, rows);
                     return;
                 } catch (Exception e) {
                     lastEx = e;
-                    Log.e("SmbWriter", "attempt " + attempt + " failed", e);
-                    try {
-                        Thread.sleep(retryDelayMs);
-                    } catch (InterruptedException ie) {
-                        // ignore
+                    kind = RetryPolicy.classify(e);
+                    metrics.failure(e);
+                    retryPolicy.onFailure(t.host, kind);
+                    Log.e("SmbWriter", "attempt " + attempt + " failed (" + kind + ")", e);
+                    if (ShareMetadata.isNotFound(e)) partitions.forget(dest);
+                    if (lease != null) {
+                        lease.metadata().invalidate(e);
+                        // a locked file leaves the session usable; anything else gets a fresh connection
+                        if (kind != RetryPolicy.Kind.CONTENTION) lease.invalidate(kind == RetryPolicy.Kind.TRANSIENT);
                     }
+                } finally {
+                    if (lease != null) lease.close();
+                }
+                if (kind == RetryPolicy.Kind.FATAL || attempt >= o.retries) break;
+                try {
+                    Thread.sleep(RetryPolicy.delayMs(attempt + 1, kind, o.retryDelayMs));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
-            Log.e("SmbWriter", "all attempts failed");
-            if (lastEx != null) {
-                call.reject("write failed: " + lastEx.getMessage());
-            } else {
-                call.reject("write failed: unknown error");
+        }
+        Log.e("SmbWriter", "giving up after " + attempt + " attempts");
+        throw lastEx != null ? lastEx : new Exception("unknown error");
+    }
+
+    // Journal audit entries for committed rows; they are appended later, in batches, off this write's path
+    private void recordAudit(SmbTarget t, WriteOptions o, List<CsvCodec.Row> rows) {
+        if (!o.audit || audit == null) return;
+        try {
+            if (audit.record(t, o.user, o.pass, rows) && flusher != null) {
+                flusher.execute(this::flushAudit);
             }
-        }).start();
+        } catch (Exception e) {
+            // the rows are on the share: this must not fail (and retry) the write
+            Log.e("SmbWriter", "could not journal " + rows.size() + " audit entries", e);
+        }
     }
 }
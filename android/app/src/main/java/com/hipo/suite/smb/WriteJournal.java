@@ -0,0 +1,291 @@
+package com.hipo.suite.smb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal for rows that still have to reach the share.
+ * Records are length-prefixed and CRC-checked ([len][crc][seq][payload]) and
+ * fsync'd on every append, so an enqueue survives process or WebView death.
+ * Records are grouped into segment files named after their first sequence number;
+ * acknowledged sequence numbers go to a separate ack log, and a segment is deleted
+ * once every record in it has been acknowledged.
+ */
+final class WriteJournal implements Closeable {
+    static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    // len(4) + crc(4) + seq(8)
+    private static final int HEADER = 16;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ACK_FILE = "acks.log";
+
+    static final class Record {
+        final long seq;
+        final byte[] payload;
+
+        Record(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    // records not yet acknowledged, in sequence order
+    private final TreeMap<Long, byte[]> unacked = new TreeMap<>();
+    // first sequence number of each segment file still on disk
+    private final TreeSet<Long> segments = new TreeSet<>();
+    private long nextSeq = 1;
+    private FileChannel current;
+    private long currentStart;
+    private FileChannel acks;
+
+    WriteJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    WriteJournal(File dir, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create journal dir " + dir);
+        }
+        recover();
+    }
+
+    /** Durably append a record and return its sequence number. */
+    synchronized long append(byte[] payload) throws IOException {
+        if (current == null || current.size() >= segmentBytes) {
+            rotate();
+        }
+        long seq = nextSeq++;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + payload.length);
+        buf.putInt(payload.length);
+        buf.putInt(crc(seq, payload));
+        buf.putLong(seq);
+        buf.put(payload);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            current.write(buf);
+        }
+        current.force(false);
+        unacked.put(seq, payload);
+        return seq;
+    }
+
+    /** Records still waiting for an SMB acknowledgement, oldest first. */
+    synchronized List<Record> pending() {
+        List<Record> out = new ArrayList<>(unacked.size());
+        for (Map.Entry<Long, byte[]> e : unacked.entrySet()) {
+            out.add(new Record(e.getKey(), e.getValue()));
+        }
+        return out;
+    }
+
+    /** Mark records as delivered and drop segments that no longer hold pending records. */
+    synchronized void ack(Collection<Long> seqs) throws IOException {
+        if (seqs.isEmpty()) return;
+        ByteBuffer buf = ByteBuffer.allocate(8 * seqs.size());
+        for (long seq : seqs) {
+            buf.putLong(seq);
+            unacked.remove(seq);
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            acks.write(buf);
+        }
+        acks.force(false);
+        compact();
+    }
+
+    synchronized int pendingCount() {
+        return unacked.size();
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    synchronized long diskBytes() {
+        long total = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) total += f.length();
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (current != null) current.close();
+        if (acks != null) acks.close();
+        current = null;
+        acks = null;
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                segments.add(segmentStart(f));
+                readSegment(f);
+            }
+        }
+        File ackFile = new File(dir, ACK_FILE);
+        if (ackFile.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(ackFile, "rw")) {
+                // ignore a torn trailing entry
+                long whole = raf.length() - raf.length() % 8;
+                raf.setLength(whole);
+                ByteBuffer buf = ByteBuffer.allocate((int) whole);
+                raf.getChannel().read(buf, 0);
+                buf.flip();
+                while (buf.remaining() >= 8) {
+                    long seq = buf.getLong();
+                    unacked.remove(seq);
+                    // the ack log can outlive its segments (crash mid-compaction):
+                    // never hand out a sequence number it may still acknowledge
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                }
+            }
+        }
+        acks = new RandomAccessFile(ackFile, "rw").getChannel();
+        if (segments.isEmpty()) {
+            // nothing left to acknowledge; nextSeq already sits above every stale entry
+            acks.truncate(0);
+            acks.force(false);
+        }
+        acks.position(acks.size());
+        if (!segments.isEmpty()) {
+            currentStart = segments.last();
+            current = new RandomAccessFile(segmentFile(currentStart), "rw").getChannel();
+            current.position(current.size());
+        }
+        compact();
+    }
+
+    // Load every valid record of a segment, truncating a torn or corrupt tail
+    private void readSegment(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+            long pos = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (pos + HEADER <= size) {
+                header.clear();
+                ch.read(header, pos);
+                header.flip();
+                int len = header.getInt();
+                int crc = header.getInt();
+                long seq = header.getLong();
+                if (len < 0 || pos + HEADER + len > size) break;
+                ByteBuffer payload = ByteBuffer.allocate(len);
+                ch.read(payload, pos + HEADER);
+                if (crc(seq, payload.array()) != crc) break;
+                unacked.put(seq, payload.array());
+                nextSeq = Math.max(nextSeq, seq + 1);
+                pos += HEADER + len;
+            }
+            if (pos < size) {
+                ch.truncate(pos);
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (current != null) current.close();
+        currentStart = nextSeq;
+        segments.add(currentStart);
+        current = new RandomAccessFile(segmentFile(currentStart), "rw").getChannel();
+        current.position(current.size());
+    }
+
+    // Delete segments whose records are all acknowledged and trim the ack log to match
+    private void compact() throws IOException {
+        Long oldestPending = unacked.isEmpty() ? null : unacked.firstKey();
+        List<Long> removable = new ArrayList<>();
+        for (long start : segments) {
+            Long next = segments.higher(start);
+            boolean isCurrent = current != null && start == currentStart;
+            long end = next != null ? next : nextSeq;
+            if (!isCurrent && (oldestPending == null || oldestPending >= end)) {
+                removable.add(start);
+            }
+        }
+        if (current != null && oldestPending == null && current.size() > 0) {
+            // everything delivered: start over with an empty segment
+            current.close();
+            current = null;
+            removable.add(currentStart);
+        }
+        for (long start : removable) {
+            segments.remove(start);
+            if (!segmentFile(start).delete()) {
+                segments.add(start);
+            }
+        }
+        if (!removable.isEmpty()) {
+            rewriteAcks();
+        }
+    }
+
+    // Keep only ack entries that still refer to records in live segments
+    private void rewriteAcks() throws IOException {
+        long floor = segments.isEmpty() ? nextSeq : segments.first();
+        List<Long> keep = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocate((int) acks.size());
+        acks.read(buf, 0);
+        buf.flip();
+        while (buf.remaining() >= 8) {
+            long seq = buf.getLong();
+            if (seq >= floor) keep.add(seq);
+        }
+        File tmp = new File(dir, ACK_FILE + ".tmp");
+        try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+            out.truncate(0);
+            ByteBuffer w = ByteBuffer.allocate(8 * keep.size());
+            for (long seq : keep) w.putLong(seq);
+            w.flip();
+            while (w.hasRemaining()) out.write(w);
+            out.force(false);
+        }
+        acks.close();
+        File ackFile = new File(dir, ACK_FILE);
+        boolean renamed = tmp.renameTo(ackFile);
+        acks = new RandomAccessFile(ackFile, "rw").getChannel();
+        acks.position(acks.size());
+        if (!renamed) {
+            throw new IOException("cannot replace " + ackFile);
+        }
+    }
+
+    private File segmentFile(long start) {
+        return new File(dir, String.format(Locale.ROOT, "%020d", start) + SEGMENT_SUFFIX);
+    }
+
+    private static long segmentStart(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int crc(long seq, byte[] payload) {
+        CRC32 crc = new CRC32();
+        byte[] s = ByteBuffer.allocate(8).putLong(seq).array();
+        crc.update(s, 0, s.length);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,38 @@
+package com.hipo.suite.smb;
+
+/**
+ * Options shared by writeLine and writeLines, read once from the plugin call.
+ */
+final class WriteOptions {
+    String url; // smb://host/share/path/file.csv
+    String user = "";
+    String pass = "";
+    int retries = 3;
+    int retryDelayMs = 1000;
+    boolean atomic = true;
+    boolean encrypt = false;
+    String keyAlias = "hipo_smb_key";
+    String passphrase;
+    // encrypted CSV layout: 2 = one HIPOSENC blob per write, 3 = framed v3 container
+    int encFormat = 2;
+    boolean protectExcel = false;
+    String excelPassword;
+    // data rows per workbook part before rolling to name.partN.xlsx
+    int excelMaxRows = XlsxAppender.DEFAULT_MAX_ROWS;
+    // partitioned output (see Partitioner): one file per day and/or roll at this many bytes (0 = off)
+    boolean partitionByDay = false;
+    long partitionMaxBytes = 0;
+    // add audit_access_log.csv entries for the rows; off for files that are not check-ins
+    boolean audit = true;
+
+    boolean partitioned() {
+        return partitionByDay || partitionMaxBytes > 0;
+    }
+
+    // Rows whose options produce the same key can be committed in one batch
+    String batchKey() {
+        return url + "|" + user + "|" + pass + "|" + atomic + "|" + encrypt + "|" + encFormat + "|" + keyAlias + "|" + passphrase
+                + "|" + protectExcel + "|" + excelPassword + "|" + excelMaxRows
+                + "|" + partitionByDay + "|" + partitionMaxBytes + "|" + audit;
+    }
+}
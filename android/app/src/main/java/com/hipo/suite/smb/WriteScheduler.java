@@ -0,0 +1,173 @@
+package com.hipo.suite.smb;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs plugin writes on a small fixed pool. Writes to the same target are
+ * serialised in submission order (one writer per file, so tmp/rename steps never
+ * race), writes to different targets run in parallel, and the total number of
+ * queued writes is capped so a burst from JS is pushed back instead of piling up.
+ */
+final class WriteScheduler {
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_MAX_PENDING = 256;
+
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Object lock = new Object();
+    // pending work per target; a key is present only while it has queued or running tasks
+    private final Map<String, ArrayDeque<Task>> queues = new HashMap<>();
+    private int pending;
+    private boolean shutdown;
+
+    private static final class Task {
+        final Runnable run;
+        final Runnable onCancel;
+        // set under lock once a drain has picked the task up
+        boolean started;
+
+        Task(Runnable run, Runnable onCancel) {
+            this.run = run;
+            this.onCancel = onCancel;
+        }
+    }
+
+    WriteScheduler() {
+        this(DEFAULT_THREADS, DEFAULT_MAX_PENDING);
+    }
+
+    WriteScheduler(int threads, int maxPending) {
+        this.maxPending = maxPending;
+        final AtomicInteger n = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "SmbWriter-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a write for key. Returns false without queueing when maxPending writes
+     * are already waiting or the scheduler is shut down; onCancel runs if the task
+     * is cancelled, or the scheduler shut down, before it starts.
+     */
+    boolean submit(String key, Runnable run, Runnable onCancel) {
+        synchronized (lock) {
+            if (shutdown || pending >= maxPending) return false;
+            pending++;
+            ArrayDeque<Task> q = queues.get(key);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                queues.put(key, q);
+                q.add(new Task(run, onCancel));
+                executor.execute(() -> drain(key));
+            } else {
+                // a drain for this key is already scheduled; it will pick this up in order
+                q.add(new Task(run, onCancel));
+            }
+            return true;
+        }
+    }
+
+    // Run the head task for key, then hand the next one back to the pool
+    private void drain(String key) {
+        Task task;
+        synchronized (lock) {
+            ArrayDeque<Task> q = queues.get(key);
+            task = shutdown || q == null ? null : q.peek();
+            if (task == null) return;
+            task.started = true;
+        }
+        try {
+            task.run.run();
+        } finally {
+            synchronized (lock) {
+                ArrayDeque<Task> q = queues.get(key);
+                if (q != null) {
+                    q.poll();
+                    pending--;
+                    if (q.isEmpty() || shutdown) {
+                        // after shutdown the rest of the queue was already cancelled
+                        queues.remove(key);
+                    } else {
+                        // re-enqueue instead of looping so other targets get a turn
+                        executor.execute(() -> drain(key));
+                    }
+                }
+            }
+        }
+    }
+
+    /** Cancel writes for key that have not started yet; returns how many were dropped. */
+    int cancelPending(String key) {
+        ArrayDeque<Task> dropped = new ArrayDeque<>();
+        synchronized (lock) {
+            ArrayDeque<Task> q = queues.get(key);
+            if (q == null) return 0;
+            // the head is running (or about to), keep it
+            Task head = q.poll();
+            dropped.addAll(q);
+            q.clear();
+            q.add(head);
+            pending -= dropped.size();
+        }
+        for (Task t : dropped) {
+            if (t.onCancel != null) t.onCancel.run();
+        }
+        return dropped.size();
+    }
+
+    int depth() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    Map<String, Integer> depthByTarget() {
+        Map<String, Integer> out = new LinkedHashMap<>();
+        synchronized (lock) {
+            for (Map.Entry<String, ArrayDeque<Task>> e : queues.entrySet()) {
+                out.put(e.getKey(), e.getValue().size());
+            }
+        }
+        return out;
+    }
+
+    int maxPending() {
+        return maxPending;
+    }
+
+    /**
+     * Stop the pool. Writes that have not started are dropped and their onCancel
+     * runs; a running write is interrupted.
+     */
+    void shutdown() {
+        ArrayDeque<Task> dropped = new ArrayDeque<>();
+        synchronized (lock) {
+            if (shutdown) return;
+            shutdown = true;
+            for (ArrayDeque<Task> q : queues.values()) {
+                for (Task t : q) {
+                    if (!t.started) dropped.add(t);
+                }
+            }
+            queues.values().forEach(q -> q.removeIf(t -> !t.started));
+            queues.values().removeIf(ArrayDeque::isEmpty);
+            pending -= dropped.size();
+        }
+        executor.shutdownNow();
+        for (Task t : dropped) {
+            if (t.onCancel != null) t.onCancel.run();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.hipo.suite.smb;
+
+import com.hierynomus.mssmb2.SMBApiException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead timers and counters for the write path. Each phase keeps a
+ * fixed-bucket latency histogram (lock-free, no allocation per sample) plus
+ * count, total and max; counters track rows, bytes, retries and failures by
+ * NTStatus. {@link #toJson()} renders a snapshot for getMetrics() and for the
+ * optional dump file.
+ */
+final class WriterMetrics {
+    static final String CONNECT = "connect";
+    static final String AUTHENTICATE = "authenticate";
+    static final String CONNECT_SHARE = "connectShare";
+    static final String MKDIR = "mkdir";
+    static final String WORKBOOK_LOAD = "workbookLoad";
+    static final String SERIALISE = "serialise";
+    static final String ENCRYPT = "encrypt";
+    static final String COPY = "copy";
+    static final String UPLOAD = "upload";
+    static final String RENAME = "rename";
+    static final String AUDIT_FLUSH = "auditFlush";
+    static final String TOTAL = "total";
+
+    // upper bounds in ms; the last bucket collects everything slower
+    static final long[] BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private volatile long maxNanos;
+
+        void record(long nanos) {
+            long ms = nanos / 1_000_000L;
+            int i = 0;
+            while (i < BUCKETS_MS.length && ms >= BUCKETS_MS[i]) i++;
+            buckets.incrementAndGet(i);
+            count.increment();
+            totalNanos.add(nanos);
+            // benign race: max may miss a concurrent sample
+            if (nanos > maxNanos) maxNanos = nanos;
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        // Upper bound (ms) of the bucket holding quantile q; -1 for the open-ended bucket
+        long quantileMs(double q) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return i < BUCKETS_MS.length ? BUCKETS_MS[i] : -1;
+            }
+            return -1;
+        }
+    }
+
+    /** Counts bytes passed through to the share. */
+    static final class CountingOutputStream extends FilterOutputStream {
+        long bytes;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+        }
+    }
+
+    private final Map<String, Histogram> phases = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private volatile long since = System.currentTimeMillis();
+
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /** Record the time elapsed since startNanos (from {@link #start()}) under phase. */
+    void record(String phase, long startNanos) {
+        histogram(phase).record(System.nanoTime() - startNanos);
+    }
+
+    Histogram histogram(String phase) {
+        Histogram h = phases.get(phase);
+        if (h == null) {
+            h = phases.computeIfAbsent(phase, k -> new Histogram());
+        }
+        return h;
+    }
+
+    void written(int rowCount, long byteCount) {
+        writes.increment();
+        rows.add(rowCount);
+        bytes.add(byteCount);
+    }
+
+    void retry() {
+        retries.increment();
+    }
+
+    // Failures are bucketed by NTStatus name when the server returned one, else by exception type
+    void failure(Throwable e) {
+        failures.computeIfAbsent(failureKey(e), k -> new LongAdder()).increment();
+    }
+
+    static String failureKey(Throwable e) {
+        for (Throwable c = e; c != null; c = c.getCause()) {
+            if (c instanceof SMBApiException) {
+                return String.valueOf(((SMBApiException) c).getStatus());
+            }
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    void reset() {
+        phases.clear();
+        failures.clear();
+        writes.reset();
+        rows.reset();
+        bytes.reset();
+        retries.reset();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * { since, writes, rows, bytes, retries, failures: { status: n },
+     *   phases: { name: { count, totalMs, avgMs, maxMs, p50Ms, p95Ms, p99Ms, buckets: [..] } } }
+     * Percentiles are bucket upper bounds; -1 means above the last bucket.
+     */
+    String toJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"since\":").append(since)
+                .append(",\"writes\":").append(writes.sum())
+                .append(",\"rows\":").append(rows.sum())
+                .append(",\"bytes\":").append(bytes.sum())
+                .append(",\"retries\":").append(retries.sum())
+                .append(",\"failures\":{");
+        boolean first = true;
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(failures).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue().sum());
+        }
+        sb.append("},\"bucketsMs\":[");
+        for (int i = 0; i < BUCKETS_MS.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(BUCKETS_MS[i]);
+        }
+        sb.append("],\"phases\":{");
+        first = true;
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(phases).entrySet()) {
+            Histogram h = e.getValue();
+            long n = h.count();
+            double totalMs = h.totalNanos.sum() / 1e6;
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":{")
+                    .append("\"count\":").append(n)
+                    .append(",\"totalMs\":").append(Math.round(totalMs))
+                    .append(",\"avgMs\":").append(n == 0 ? 0 : Math.round(totalMs * 100 / n) / 100.0)
+                    .append(",\"maxMs\":").append(Math.round(h.maxNanos / 1e6))
+                    .append(",\"p50Ms\":").append(h.quantileMs(0.50))
+                    .append(",\"p95Ms\":").append(h.quantileMs(0.95))
+                    .append(",\"p99Ms\":").append(h.quantileMs(0.99))
+                    .append(",\"buckets\":[");
+            for (int i = 0; i < h.buckets.length(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(h.buckets.get(i));
+            }
+            sb.append("]}");
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    /** Replace file with the current snapshot (written to a temp file, then renamed). */
+    void dump(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            os.write(toJson().getBytes(StandardCharsets.UTF_8));
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.hipo.suite.smb;
+
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.EncryptionMode;
+import org.apache.poi.poifs.crypt.Encryptor;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appends rows to the check-in workbook without letting it grow forever.
+ * The workbook is split into parts (checkins.xlsx, checkins.part2.xlsx, ...)
+ * of at most maxRows data rows, so loading, appending and re-serialising
+ * only ever touches the current part and per-row cost and heap stay bounded.
+ * New rows go through an SXSSF window instead of being materialised as XSSF rows,
+ * and the result is streamed straight to the destination (encrypted packages go
+ * through a file-backed POIFS on local disk) instead of being buffered in heap.
+ * Password-protected parts skip SXSSF: its template and sheet temp files would put
+ * the rows in cleartext on the tablet's disk.
+ */
+final class XlsxAppender {
+    static final int DEFAULT_MAX_ROWS = 5000;
+    // rows kept in memory by SXSSF before flushing to its temp file
+    private static final int ROW_WINDOW = 100;
+    static final String[] COLUMNS = new String[]{"created_at","nombre","telefono","email","cp","localidad","calleNumero","motivo"};
+
+    // Last committed part number per target, so steady-state writes skip probing
+    private final Map<String, Integer> currentPart = new ConcurrentHashMap<>();
+    private final WriterMetrics metrics;
+
+    XlsxAppender(WriterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** A rebuilt part ready to be streamed to its share path; must be closed. */
+    static final class Part implements AutoCloseable {
+        final String key;
+        final int number;
+        final String path;
+        // how many of the batch's rows went into this part
+        final int rows;
+        // SXSSFWorkbook, or the plain XSSFWorkbook for password-protected parts
+        private final Workbook wb;
+        private final String excelPassword;
+
+        Part(String key, int number, String path, int rows, Workbook wb, String excelPassword) {
+            this.key = key;
+            this.number = number;
+            this.path = path;
+            this.rows = rows;
+            this.wb = wb;
+            this.excelPassword = excelPassword;
+        }
+
+        /** Serialise (and encrypt, when a password is set) the workbook into os. */
+        void writeTo(OutputStream os) throws Exception {
+            if (excelPassword == null || excelPassword.isEmpty()) {
+                wb.write(os);
+                return;
+            }
+            // Encrypted package is assembled in a file-backed POIFS, then copied out
+            java.io.File tmp = java.io.File.createTempFile("hipo-xlsx", ".poifs");
+            try {
+                try (POIFSFileSystem fs = POIFSFileSystem.create(tmp)) {
+                    // Use POI encryptor to write a password-protected XLSX
+                    EncryptionInfo info = new EncryptionInfo(EncryptionMode.standard);
+                    Encryptor enc = info.getEncryptor();
+                    enc.confirmPassword(excelPassword);
+                    try (OutputStream eos = enc.getDataStream(fs)) {
+                        wb.write(eos);
+                    }
+                    fs.writeFilesystem();
+                }
+                try (InputStream is = new FileInputStream(tmp)) {
+                    byte[] buffer = new byte[65536];
+                    int r;
+                    while ((r = is.read(buffer)) != -1) {
+                        os.write(buffer, 0, r);
+                    }
+                }
+            } finally {
+                tmp.delete();
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (wb instanceof SXSSFWorkbook) {
+                // removes SXSSF's temp sheet files
+                ((SXSSFWorkbook) wb).dispose();
+            }
+            wb.close();
+        }
+    }
+
+    // checkins.xlsx -> checkins.part3.xlsx
+    static String partPath(String relPath, int part) {
+        if (part <= 1) return relPath;
+        int slash = relPath.lastIndexOf('/');
+        int dot = relPath.lastIndexOf('.');
+        if (dot <= slash) return relPath + ".part" + part;
+        return relPath.substring(0, dot) + ".part" + part + relPath.substring(dot);
+    }
+
+    /**
+     * Load the current part and append rows to it. Rolls over to a new part
+     * when the current one already holds maxRows rows or is not a workbook this
+     * password opens, and splits the batch where a part fills up, so the rows that
+     * do not fit go into the next part. Returns the parts to write, in order.
+     * Errors reading a part from the share are thrown, not rolled over.
+     */
+    List<Part> append(ShareFs disk, ShareMetadata meta, SmbTarget t, List<CsvCodec.Row> rows, int maxRows, String excelPassword) throws Exception {
+        String key = t.toString();
+        Integer cached = currentPart.get(key);
+        int part = cached != null ? cached : probeLastPart(disk, t.relPath);
+        int limit = Math.max(1, maxRows);
+        List<Part> parts = new ArrayList<>();
+        try {
+            int from = 0;
+            do {
+                Part p = appendPart(disk, meta, t, key, part, rows.subList(from, rows.size()), limit, excelPassword);
+                parts.add(p);
+                from += p.rows;
+                part = p.number + 1;
+            } while (from < rows.size());
+        } catch (Exception e) {
+            for (Part p : parts) p.close();
+            throw e;
+        }
+        return parts;
+    }
+
+    // Append as many of rows as fit to the first part from number part on that is not full
+    private Part appendPart(ShareFs disk, ShareMetadata meta, SmbTarget t, String key, int part,
+                            List<CsvCodec.Row> rows, int maxRows, String excelPassword) throws Exception {
+        while (true) {
+            String path = partPath(t.relPath, part);
+            Workbook existing = null;
+            if (meta.fileExists(disk, path)) {
+                long t0 = WriterMetrics.start();
+                existing = load(disk, path, excelPassword);
+                metrics.record(WriterMetrics.WORKBOOK_LOAD, t0);
+                if (existing == null || existing.getNumberOfSheets() == 0 || existing.getSheetAt(0).getLastRowNum() >= maxRows) {
+                    // full or unreadable: never overwrite it, continue in the next part
+                    if (existing != null) existing.close();
+                    part++;
+                    continue;
+                }
+            }
+            // row 0 is the header, so the last row number is the count of data rows
+            int room = maxRows - (existing == null ? 0 : existing.getSheetAt(0).getLastRowNum());
+            List<CsvCodec.Row> fit = rows.subList(0, Math.min(room, rows.size()));
+            long t0 = WriterMetrics.start();
+            boolean protectedPart = excelPassword != null && !excelPassword.isEmpty();
+            Workbook wb = build((XSSFWorkbook) existing, fit, !protectedPart);
+            metrics.record(WriterMetrics.SERIALISE, t0);
+            return new Part(key, part, path, fit.size(), wb, excelPassword);
+        }
+    }
+
+    // Remember the part that just received rows
+    void committed(Part part) {
+        currentPart.put(part.key, part.number);
+    }
+
+    // Forget cached state for a target, e.g. after the share reported it missing
+    void forget(SmbTarget t) {
+        currentPart.remove(t.toString());
+    }
+
+    private int probeLastPart(ShareFs disk, String relPath) {
+        int part = 1;
+        while (disk.fileExists(partPath(relPath, part + 1))) {
+            part++;
+        }
+        return part;
+    }
+
+    // null when the part is not a workbook this password opens
+    private Workbook load(ShareFs disk, String path, String excelPassword) throws Exception {
+        // Read the whole part first, so share and transport errors propagate (and are
+        // retried) instead of looking like a damaged workbook; parts are bounded by maxRows
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (ShareFs.Handle fExisting = disk.open(path, ShareFs.Mode.READ);
+             InputStream is = fExisting.getInputStream()) {
+            byte[] buffer = new byte[65536];
+            int r;
+            while ((r = is.read(buffer)) != -1) {
+                raw.write(buffer, 0, r);
+            }
+        }
+        try {
+            // WorkbookFactory also opens password-protected (encrypted) packages
+            Workbook wb = WorkbookFactory.create(new ByteArrayInputStream(raw.toByteArray()),
+                    excelPassword == null || excelPassword.isEmpty() ? null : excelPassword);
+            if (!(wb instanceof XSSFWorkbook)) {
+                wb.close();
+                return null;
+            }
+            return wb;
+        } catch (Exception e) {
+            // parsing local bytes: a wrong password, a torn or foreign file
+            return null;
+        }
+    }
+
+    private Workbook build(XSSFWorkbook wb, List<CsvCodec.Row> rows, boolean streaming) throws Exception {
+        if (wb == null) {
+            wb = new XSSFWorkbook();
+        }
+        int insertRow;
+        if (wb.getNumberOfSheets() == 0) {
+            Sheet sheet = wb.createSheet("checkins");
+            Row header = sheet.createRow(0);
+            for (int i=0;i<COLUMNS.length;i++) {
+                Cell c = header.createCell(i);
+                c.setCellValue(COLUMNS[i]);
+            }
+            insertRow = 1;
+        } else {
+            Sheet sheet = wb.getSheetAt(0);
+            insertRow = Math.max(1, sheet.getLastRowNum() + 1);
+        }
+
+        // existing rows stay in the XSSF model, new rows stream through the SXSSF window
+        Workbook out = streaming ? new SXSSFWorkbook(wb, ROW_WINDOW) : wb;
+        Sheet sheet = out.getSheetAt(0);
+        for (CsvCodec.Row row : rows) {
+            Row r = sheet.createRow(insertRow++);
+            String[] fields = row.fields;
+            for (int i=0;i<fields.length;i++) {
+                Cell c = r.createCell(i);
+                c.setCellValue(fields[i]);
+            }
+        }
+        return out;
+    }
+}
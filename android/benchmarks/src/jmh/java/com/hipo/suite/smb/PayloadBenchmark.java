@@ -0,0 +1,65 @@
+package com.hipo.suite.smb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The CPU steps of building a payload, without any I/O: CSV encoding of a batch,
+ * HIPOSENC v2 encryption of the encoded bytes, and the PBKDF2 derivation that
+ * KeyMaterialCache saves on every write after the first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+    @Param({"1", "50", "1000"})
+    public int rows;
+
+    private List<CsvCodec.Row> batch;
+    private CsvCodec.Buffer buffer;
+    private SecretKey key;
+    private byte[] salt;
+
+    @Setup
+    public void setup() throws Exception {
+        batch = WritePathBenchmark.rows(rows, 0);
+        buffer = new CsvCodec.Buffer(CsvCodec.INITIAL_BUFFER_BYTES);
+        salt = HiposCrypto.randomBytes(HiposCrypto.SALT_BYTES);
+        key = new SecretKeySpec(HiposCrypto.deriveKeyBytes("bench-passphrase", salt), "AES");
+        RowCommitter.encodeCsv(batch, false, buffer);
+    }
+
+    @Benchmark
+    public int encodeCsv() {
+        RowCommitter.encodeCsv(batch, false, buffer);
+        return buffer.length;
+    }
+
+    @Benchmark
+    public byte[] encryptV2() throws Exception {
+        return HiposCrypto.encryptAesGcmWithSalt(key, buffer.data, 0, buffer.length, salt);
+    }
+
+    // Independent of rows; reported once per rows value for comparison with the per-write steps
+    @Benchmark
+    public byte[] deriveKey() throws Exception {
+        return HiposCrypto.deriveKeyBytes("bench-passphrase", salt);
+    }
+}
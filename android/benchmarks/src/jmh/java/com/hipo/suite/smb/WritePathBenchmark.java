@@ -0,0 +1,158 @@
+package com.hipo.suite.smb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Cost of one write of {@code rows} rows into a target that already holds
+ * {@code existingRows} rows, for each write mode, through the same RowCommitter
+ * path the plugin uses. Divide the score by rows for the per-row cost; comparing
+ * existingRows values shows which modes grow with the file (atomic copy, XLSX
+ * reload and re-encryption) and which stay flat (plain and encrypted appends).
+ * The target is restored to its seeded copy before every invocation, outside the
+ * timed region, so each measured write sees exactly existingRows rows instead of a
+ * file that grows during the iteration. The per-invocation setup costs JMH a pair
+ * of timestamps per call, which is noise next to a file write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WritePathBenchmark {
+    static final String TARGET = "bench/checkins.csv";
+
+    @Param({"plain", "atomic", "encrypt", "encryptV3", "protectExcel", "excelPassword"})
+    public String mode;
+
+    @Param({"1000", "10000", "50000"})
+    public int existingRows;
+
+    @Param({"1", "50"})
+    public int rows;
+
+    private Path root;
+    private Path seeded;
+    private ShareFs fs;
+    private ShareMetadata meta;
+    private RowCommitter committer;
+    private WriteOptions options;
+    private SmbTarget target;
+    private List<CsvCodec.Row> batch;
+
+    @Setup(Level.Trial)
+    public void seed() throws Exception {
+        root = Files.createTempDirectory("hipo-bench");
+        fs = new LocalShareFs(root);
+        // software key in place of the Android KeyStore for v1 containers
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(256);
+        SecretKey key = kg.generateKey();
+        committer = new RowCommitter(new WriterMetrics(), new KeyMaterialCache(), alias -> key,
+                new Partitioner(), (msg, e) -> { });
+        options = options(mode);
+        target = SmbTarget.parse(options.url);
+        batch = rows(rows, 0);
+
+        // seed the target through the same write path
+        meta = new ShareMetadata();
+        try (RowCommitter.Prepared p = new RowCommitter.Prepared()) {
+            committer.commit(fs, meta, target, rows(existingRows, 0), options, p);
+        }
+        seeded = root.resolve("seeded.bin");
+        Files.copy(root.resolve(target.relPath), seeded);
+    }
+
+    // the folder and file stay in place, so the metadata cache from seeding stays valid,
+    // like a pooled share between writes
+    @Setup(Level.Invocation)
+    public void restore() throws IOException {
+        Files.copy(seeded, root.resolve(target.relPath), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        try (RowCommitter.Prepared p = new RowCommitter.Prepared()) {
+            committer.commit(fs, meta, target, batch, options, p);
+            return p.payloadLength;
+        }
+    }
+
+    static WriteOptions options(String mode) {
+        WriteOptions o = new WriteOptions();
+        o.url = "smb://bench/share/" + TARGET;
+        o.user = "bench";
+        o.pass = "bench";
+        o.atomic = false;
+        switch (mode) {
+            case "plain":
+                break;
+            case "atomic":
+                o.atomic = true;
+                break;
+            case "encrypt":
+                o.encrypt = true;
+                o.passphrase = "bench-passphrase";
+                break;
+            case "encryptV3":
+                o.encrypt = true;
+                o.encFormat = 3;
+                o.passphrase = "bench-passphrase";
+                break;
+            case "excelPassword":
+                o.excelPassword = "bench";
+                // fall through
+            case "protectExcel":
+                o.url = o.url.replace(".csv", ".xlsx");
+                o.protectExcel = true;
+                // measure against the whole file; in the app parts cap this at excelMaxRows
+                o.excelMaxRows = Integer.MAX_VALUE;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode " + mode);
+        }
+        return o;
+    }
+
+    // Check-in rows shaped like the app's (XlsxAppender.COLUMNS)
+    static List<CsvCodec.Row> rows(int n, int from) {
+        List<CsvCodec.Row> out = new ArrayList<>(n);
+        for (int i = from; i < from + n; i++) {
+            out.add(CsvCodec.Row.of(
+                    "2026-10-18T10:" + (i / 60 % 60) + ":" + (i % 60) + "Z", "Perez, Ana " + i, "600" + (100000 + i),
+                    "ana" + i + "@example.es", "28001", "Madrid", "Calle Mayor " + (i % 200), "visita"));
+        }
+        return out;
+    }
+}
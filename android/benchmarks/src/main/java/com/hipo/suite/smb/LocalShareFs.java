@@ -0,0 +1,224 @@
+package com.hipo.suite.smb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * ShareFs over a local directory, standing in for an SMB share so the write path
+ * can be benchmarked and tested offline. Open modes follow the SMB create
+ * dispositions the app uses (CREATE fails when the file exists, REPLACE truncates,
+ * ...), and the server-side copy is a local channel transfer. Network latency is
+ * not modelled: results show CPU, allocation and bytes-touched cost per mode.
+ */
+final class LocalShareFs implements ShareFs {
+    private final Path root;
+
+    LocalShareFs(Path root) {
+        this.root = root;
+    }
+
+    private Path resolve(String path) {
+        return root.resolve(path);
+    }
+
+    @Override
+    public boolean fileExists(String path) {
+        return Files.isRegularFile(resolve(path));
+    }
+
+    @Override
+    public boolean folderExists(String path) {
+        return Files.isDirectory(resolve(path));
+    }
+
+    @Override
+    public void mkdir(String path) {
+        try {
+            Files.createDirectory(resolve(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long size(String path) {
+        try {
+            return Files.size(resolve(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Handle open(String path, Mode mode) {
+        Set<StandardOpenOption> options;
+        switch (mode) {
+            case READ:
+                options = EnumSet.of(StandardOpenOption.READ);
+                break;
+            case APPEND:
+            case READ_WRITE:
+                options = EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                break;
+            case REPLACE:
+                options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                break;
+            default:
+                options = EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                break;
+        }
+        try {
+            return new LocalHandle(resolve(path), FileChannel.open(resolve(path), options));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private final class LocalHandle implements Handle {
+        private Path path;
+        private final FileChannel channel;
+        private boolean deleteOnClose;
+
+        LocalHandle(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() {
+            try {
+                return channel.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] buf, long fileOffset, int off, int len) {
+            try {
+                return channel.read(ByteBuffer.wrap(buf, off, len), fileOffset);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void write(byte[] buf, long fileOffset, int off, int len) {
+            ByteBuffer b = ByteBuffer.wrap(buf, off, len);
+            try {
+                long pos = fileOffset;
+                while (b.hasRemaining()) {
+                    pos += channel.write(b, pos);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            try {
+                channel.position(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return Channels.newInputStream(channel);
+        }
+
+        @Override
+        public OutputStream getOutputStream(boolean append) {
+            try {
+                channel.position(append ? channel.size() : 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // the handle owns the channel: closing the stream must not close it
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                    while (buf.hasRemaining()) channel.write(buf);
+                }
+            };
+        }
+
+        @Override
+        public void setLength(long length) {
+            try {
+                if (length < channel.size()) {
+                    channel.truncate(length);
+                } else if (length > channel.size()) {
+                    channel.write(ByteBuffer.allocate(1), length - 1);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // SMB2 FLUSH asks the server to persist; the closest local equivalent
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void copyTo(Handle dest) throws Exception {
+            FileChannel to = ((LocalHandle) dest).channel;
+            long n = channel.size();
+            long pos = 0;
+            while (pos < n) {
+                pos += channel.transferTo(pos, n - pos, to.position(pos));
+            }
+        }
+
+        @Override
+        public void rename(String target, boolean replace) {
+            Path dest = resolve(target);
+            try {
+                if (replace) {
+                    Files.move(path, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    Files.move(path, dest, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            path = dest;
+        }
+
+        @Override
+        public void deleteOnClose() {
+            deleteOnClose = true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+                if (deleteOnClose) Files.deleteIfExists(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
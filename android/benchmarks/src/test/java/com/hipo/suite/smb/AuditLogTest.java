@@ -0,0 +1,132 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AuditLogTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final SmbTarget DATA = SmbTarget.parse("smb://nas/share/sede/checkins.csv");
+    private static final SmbTarget OTHER = SmbTarget.parse("smb://nas/share/otra/checkins.csv");
+
+    private File dir;
+    private AuditLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder();
+        log = new AuditLog(new WriteJournal(dir), 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+    }
+
+    @Test
+    public void recordAsksForAFlushOnceABatchIsFull() throws Exception {
+        assertFalse(log.record(DATA, "u", "p", rows("a", "b")));
+        assertTrue(log.record(DATA, "u", "p", rows("c")));
+        assertEquals(3, log.pending());
+    }
+
+    @Test
+    public void drainGroupsEntriesPerFileAndCredentials() throws Exception {
+        log.record(DATA, "u", "p", rows("a"));
+        log.record(OTHER, "u", "p", rows("b"));
+        log.record(DATA, "u", "p", rows("c"));
+        log.record(DATA, "v", "p", rows("d"));
+        List<AuditLog.Batch> batches = log.drain();
+        assertEquals(3, batches.size());
+        AuditLog.Batch first = batches.get(0);
+        assertEquals("sede/" + AuditLog.FILE_NAME, first.target.relPath);
+        assertEquals(2, first.lines.size());
+        assertTrue(first.lines.get(0).endsWith(",Ana,visita"));
+        assertEquals(2, first.seqs.size());
+        assertEquals("otra/" + AuditLog.FILE_NAME, batches.get(1).target.relPath);
+        assertEquals("v", batches.get(2).user);
+    }
+
+    @Test
+    public void entriesBeingFlushedAreNotDrainedTwice() throws Exception {
+        log.record(DATA, "u", "p", rows("a"));
+        List<AuditLog.Batch> first = log.drain();
+        log.record(DATA, "u", "p", rows("b"));
+        List<AuditLog.Batch> second = log.drain();
+        assertEquals(1, second.size());
+        assertEquals(1, second.get(0).lines.size());
+        assertTrue(log.drain().isEmpty());
+        log.done(first.get(0), true);
+        log.done(second.get(0), true);
+        assertEquals(0, log.pending());
+    }
+
+    @Test
+    public void failedBatchIsDrainedAgainAndAckedOnlyWhenWritten() throws Exception {
+        log.record(DATA, "u", "p", rows("a", "b"));
+        log.done(log.drain().get(0), false);
+        assertEquals(2, log.pending());
+        AuditLog.Batch retry = log.drain().get(0);
+        assertEquals(2, retry.lines.size());
+        log.done(retry, true);
+        assertEquals(0, log.pending());
+        assertTrue(log.drain().isEmpty());
+    }
+
+    @Test
+    public void unackedEntriesSurviveAReopen() throws Exception {
+        log.record(DATA, "u", "p", rows("a", "b"));
+        log.done(log.drain().get(0), false);
+        log.close();
+        log = new AuditLog(new WriteJournal(dir), 3);
+        assertEquals(2, log.pending());
+        assertEquals(2, log.drain().get(0).lines.size());
+    }
+
+    @Test
+    public void writeStartsAnEmptyFileWithTheHeader() throws Exception {
+        Path root = tmp.newFolder().toPath();
+        Files.createDirectories(root.resolve("sede"));
+        ShareFs fs = new LocalShareFs(root);
+        log.record(DATA, "u", "p", rows("a"));
+        AuditLog.Batch b = log.drain().get(0);
+        AuditLog.write(fs, b);
+        AuditLog.write(fs, b);
+        Path file = root.resolve("sede").resolve(AuditLog.FILE_NAME);
+        List<String> lines = lines(file);
+        assertEquals(3, lines.size());
+        assertEquals(AuditLog.HEADER, lines.get(0));
+
+        // rotated away and recreated empty by someone else
+        Files.write(file, new byte[0]);
+        AuditLog.write(fs, b);
+        lines = lines(file);
+        assertEquals(2, lines.size());
+        assertEquals(AuditLog.HEADER, lines.get(0));
+    }
+
+    private static List<CsvCodec.Row> rows(String... createdAt) {
+        CsvCodec.Row[] out = new CsvCodec.Row[createdAt.length];
+        for (int i = 0; i < createdAt.length; i++) out[i] = RowCommitterTest.row(createdAt[i]);
+        return Arrays.asList(out);
+    }
+
+    private static List<String> lines(Path file) throws Exception {
+        return Arrays.asList(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\n"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CsvCodecTest {
+    @Test
+    public void plainFieldsAreNotQuoted() {
+        assertEquals("a,b,,c\n", encode(CsvCodec.Row.of("a", "b", "", "c")));
+    }
+
+    @Test
+    public void separatorsAndQuotesAreQuoted() {
+        assertEquals("\"Perez, Ana\",\"say \"\"hi\"\"\",\"two\nlines\",\"cr\r\"\n",
+                encode(CsvCodec.Row.of("Perez, Ana", "say \"hi\"", "two\nlines", "cr\r")));
+    }
+
+    @Test
+    public void nullFieldIsEmpty() {
+        assertEquals(",x\n", encode(CsvCodec.Row.of(null, "x")));
+    }
+
+    @Test
+    public void encodesUtf8LikeStringGetBytes() {
+        String v = "Mu\u00f1oz \u20ac, \ud83d\ude00";
+        CsvCodec.Buffer buf = new CsvCodec.Buffer(1);
+        CsvCodec.encodeRow(new String[]{v}, buf);
+        byte[] expected = ("\"" + v + "\"\n").getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, Arrays.copyOf(buf.data, buf.length));
+    }
+
+    @Test
+    public void parseLineUndoesEscape() {
+        String[] fields = {"Perez, Ana", "say \"hi\"", "", "plain"};
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) line.append(',');
+            line.append(CsvCodec.escape(fields[i]));
+        }
+        assertArrayEquals(fields, CsvCodec.parseLine(line.toString()));
+    }
+
+    @Test
+    public void canonicalLegacyLineIsSplitIntoFields() {
+        CsvCodec.Row row = CsvCodec.fromLine("2026-10-18T10:00:00Z,\"Perez, Ana\",600100100");
+        assertFalse(row.verbatim());
+        assertArrayEquals(new String[]{"2026-10-18T10:00:00Z", "Perez, Ana", "600100100"}, row.fields);
+        assertEquals("2026-10-18T10:00:00Z,\"Perez, Ana\",600100100\n", encode(row));
+    }
+
+    @Test
+    public void nonCanonicalLegacyLineIsWrittenVerbatim() {
+        // quotes that re-encoding would drop, and a space after the comma
+        String line = "\"x\", \"y\"";
+        CsvCodec.Row row = CsvCodec.fromLine(line);
+        assertTrue(row.verbatim());
+        assertEquals(line, row.line);
+        assertEquals(line + "\n", encode(row));
+        // the fields are still available, e.g. for the XLSX columns
+        assertArrayEquals(new String[]{"x", " \"y\""}, row.fields);
+    }
+
+    @Test
+    public void bufferGrowsPastInitialCapacity() {
+        char[] big = new char[10_000];
+        Arrays.fill(big, 'x');
+        CsvCodec.Buffer buf = new CsvCodec.Buffer(16);
+        CsvCodec.encodeRow(new String[]{new String(big)}, buf);
+        assertEquals(10_001, buf.length);
+    }
+
+    private static String encode(CsvCodec.Row row) {
+        CsvCodec.Buffer buf = new CsvCodec.Buffer(16);
+        CsvCodec.encodeRow(row, buf);
+        return new String(buf.data, 0, buf.length, StandardCharsets.UTF_8);
+    }
+}
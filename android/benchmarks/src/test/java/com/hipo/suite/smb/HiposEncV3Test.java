@@ -0,0 +1,203 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+public class HiposEncV3Test {
+    private static final int FRAME_BYTES = 64;
+    private static final byte[] SALT = new byte[HiposCrypto.SALT_BYTES];
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+    private static final HiposEncV3.KeySource KEYS = salt -> KEY;
+
+    /** In-memory container that can fail after a number of writes, like a dropped connection. */
+    static final class MemStore implements HiposEncV3.Store {
+        byte[] data = new byte[0];
+        int failAfterWrites = -1;
+        private int writes;
+
+        @Override
+        public long size() {
+            return data.length;
+        }
+
+        @Override
+        public void read(byte[] buf, long offset) {
+            System.arraycopy(data, (int) offset, buf, 0, buf.length);
+        }
+
+        @Override
+        public void write(byte[] buf, long offset) throws IOException {
+            if (failAfterWrites >= 0 && writes++ >= failAfterWrites) throw new IOException("connection lost");
+            if (offset + buf.length > data.length) data = Arrays.copyOf(data, (int) (offset + buf.length));
+            System.arraycopy(buf, 0, data, (int) offset, buf.length);
+        }
+
+        @Override
+        public void setLength(long length) {
+            data = Arrays.copyOf(data, (int) length);
+        }
+    }
+
+    @Test
+    public void appendsRoundTrip() throws Exception {
+        MemStore store = new MemStore();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            append(store, plain, "row " + i + ",Perez Ana,visita\n");
+        }
+        HiposEncV3.Reader reader = new HiposEncV3.Reader(store, KEYS);
+        assertTrue(reader.indexed);
+        assertTrue(reader.header.fixedFrames());
+        assertNull(reader.verify());
+        assertArrayEquals(plain.toByteArray(), all(reader));
+        // every frame but the last is full, so the file is plaintext plus a fixed overhead per frame
+        int frames = reader.frames.size();
+        assertEquals((plain.size() + FRAME_BYTES - 1) / FRAME_BYTES, frames);
+        assertEquals(HiposEncV3.HEADER_BYTES + plain.size()
+                + frames * (HiposEncV3.FRAME_HEADER_BYTES + HiposEncV3.TAG_BYTES) + HiposEncV3.FOOTER_BYTES,
+                store.size());
+    }
+
+    @Test
+    public void wrongKeyFailsVerification() throws Exception {
+        MemStore store = new MemStore();
+        append(store, new ByteArrayOutputStream(), "secret\n");
+        SecretKey other = new SecretKeySpec(ByteBuffer.allocate(32).put((byte) 1).array(), "AES");
+        HiposEncV3.Reader reader = new HiposEncV3.Reader(store, salt -> other);
+        assertNotNull(reader.verify());
+    }
+
+    @Test
+    public void interruptedAppendLeavesPreviousContents() throws Exception {
+        MemStore store = new MemStore();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        for (int i = 0; i < 30; i++) {
+            append(store, plain, "r" + i + "\n");
+        }
+        // the saved copy of the last frame is written, then the connection drops
+        store.failAfterWrites = 1;
+        try {
+            HiposEncV3.append(store, bytes("lost\n"), SALT, KEYS, FRAME_BYTES);
+            fail("expected the append to fail");
+        } catch (IOException expected) {
+            // the container now ends with the tail footer
+        }
+        store.failAfterWrites = -1;
+        byte[] magic = Arrays.copyOfRange(store.data, store.data.length - 8, store.data.length);
+        assertArrayEquals(HiposEncV3.TAIL_MAGIC, magic);
+
+        HiposEncV3.Reader reader = new HiposEncV3.Reader(store, KEYS);
+        assertTrue(reader.indexed);
+        assertNull(reader.verify());
+        assertArrayEquals(plain.toByteArray(), all(reader));
+
+        // the next append starts from the recovered state
+        append(store, plain, "next\n");
+        reader = new HiposEncV3.Reader(store, KEYS);
+        assertNull(reader.verify());
+        assertArrayEquals(plain.toByteArray(), all(reader));
+    }
+
+    @Test
+    public void damagedFooterFallsBackToScan() throws Exception {
+        MemStore store = new MemStore();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        for (int i = 0; i < 40; i++) {
+            append(store, plain, "row " + i + "\n");
+        }
+        store.setLength(store.size() - 5);
+        HiposEncV3.Reader reader = new HiposEncV3.Reader(store, KEYS);
+        assertFalse(reader.indexed);
+        assertArrayEquals(plain.toByteArray(), all(reader));
+
+        // appending rewrites a valid footer
+        append(store, plain, "after scan\n");
+        reader = new HiposEncV3.Reader(store, KEYS);
+        assertTrue(reader.indexed);
+        assertNull(reader.verify());
+        assertArrayEquals(plain.toByteArray(), all(reader));
+    }
+
+    @Test
+    public void legacyIndexedContainerIsReadAndAppended() throws Exception {
+        MemStore store = new MemStore();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        String[] frames = {"legacy 1\n", "a longer legacy frame\n", "3\n"};
+        store.data = legacyContainer(frames);
+        for (String f : frames) plain.write(bytes(f));
+
+        HiposEncV3.Reader reader = new HiposEncV3.Reader(store, KEYS);
+        assertFalse(reader.header.fixedFrames());
+        assertTrue(reader.indexed);
+        assertNull(reader.verify());
+        assertArrayEquals(plain.toByteArray(), all(reader));
+
+        for (int i = 0; i < 5; i++) {
+            append(store, plain, "new " + i + "\n");
+        }
+        reader = new HiposEncV3.Reader(store, KEYS);
+        assertFalse(reader.header.fixedFrames());
+        assertNull(reader.verify());
+        assertArrayEquals(plain.toByteArray(), all(reader));
+    }
+
+    private static void append(MemStore store, ByteArrayOutputStream plain, String row) throws Exception {
+        byte[] b = bytes(row);
+        plain.write(b);
+        HiposEncV3.append(store, b, SALT, KEYS, FRAME_BYTES);
+    }
+
+    private static byte[] all(HiposEncV3.Reader reader) throws Exception {
+        return reader.range(0, reader.frames.size(), null);
+    }
+
+    // A container in the pre-fixed-frame layout: frames of any size, then a frame index
+    private static byte[] legacyContainer(String[] frames) throws Exception {
+        HiposEncV3.Header header = new HiposEncV3.Header(HiposEncV3.FLAG_PASSPHRASE, FRAME_BYTES, SALT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.raw);
+        ByteBuffer index = ByteBuffer.allocate(frames.length * HiposEncV3.INDEX_ENTRY_BYTES);
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < frames.length; i++) {
+            byte[] p = bytes(frames[i]);
+            byte[] iv = new byte[HiposCrypto.IV_BYTES];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec(HiposCrypto.TAG_BITS, iv));
+            cipher.updateAAD(ByteBuffer.allocate(HiposEncV3.HEADER_BYTES + 8).put(header.raw).putLong(i).array());
+            byte[] ct = cipher.doFinal(p);
+            index.putLong(out.size()).putInt(p.length);
+            out.write(ByteBuffer.allocate(4).putInt(ct.length).array());
+            out.write(iv);
+            out.write(ct);
+        }
+        long indexOffset = out.size();
+        out.write(index.array());
+        out.write(ByteBuffer.allocate(HiposEncV3.FOOTER_BYTES)
+                .putLong(indexOffset).putInt(frames.length).put(HiposEncV3.INDEX_MAGIC).array());
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
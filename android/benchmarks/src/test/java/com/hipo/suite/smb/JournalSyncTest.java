@@ -0,0 +1,135 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class JournalSyncTest {
+    private final FakePlanner planner = new FakePlanner();
+    private final JournalSync sync = new JournalSync(planner, p -> { }, (msg, e) -> { }, 1, 10);
+
+    @After
+    public void close() {
+        sync.close();
+    }
+
+    @Test
+    public void triggersDuringAPassFoldIntoOneFollowUp() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        planner.gate = release;
+        planner.targets.add("a");
+        sync.request("enqueue");
+        assertTrue(planner.firstPlan.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) sync.request("enqueue");
+        release.countDown();
+        assertTrue(sync.awaitIdle(5000));
+        assertEquals(2, planner.passes.get());
+        assertEquals("enqueue", sync.progress().reason);
+    }
+
+    @Test
+    public void nothingRunsOfflineAndRegainingTheNetworkStartsAPass() throws Exception {
+        planner.targets.add("a");
+        sync.setOnline(false);
+        sync.request("timer");
+        assertTrue(sync.awaitIdle(1000));
+        assertEquals(0, planner.passes.get());
+
+        sync.setOnline(true);
+        assertTrue(sync.awaitIdle(5000));
+        assertEquals(1, planner.passes.get());
+        assertEquals("network", sync.progress().reason);
+        assertEquals(1, sync.progress().flushed);
+    }
+
+    @Test
+    public void aFailedDestinationIsSkippedForTheRestOfThePass() throws Exception {
+        planner.targets.add("bad");
+        planner.targets.add("bad");
+        planner.targets.add("good");
+        planner.failing = "bad";
+        sync.request("manual");
+        assertTrue(sync.awaitIdle(5000));
+        assertEquals(2, planner.submitted.size());
+        assertEquals("bad", planner.submitted.get(0));
+        assertEquals("good", planner.submitted.get(1));
+        assertEquals(1, sync.progress().failed);
+        assertEquals(1, sync.progress().flushed);
+    }
+
+    @Test
+    public void awaitIdleReturnsOnceClosed() throws Exception {
+        planner.gate = new CountDownLatch(1);
+        planner.targets.add("a");
+        sync.request("enqueue");
+        assertTrue(planner.firstPlan.await(5, TimeUnit.SECONDS));
+        assertFalse(sync.awaitIdle(50));
+        sync.close();
+        assertTrue(sync.awaitIdle(5000));
+    }
+
+    private static final class FakePlanner implements JournalSync.Planner {
+        final List<String> targets = new ArrayList<>();
+        final List<String> submitted = new ArrayList<>();
+        final AtomicInteger passes = new AtomicInteger();
+        final CountDownLatch firstPlan = new CountDownLatch(1);
+        volatile CountDownLatch gate;
+        volatile String failing;
+
+        @Override
+        public List<JournalSync.Batch> plan(int maxBatchRows) {
+            passes.incrementAndGet();
+            firstPlan.countDown();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<JournalSync.Batch> out = new ArrayList<>();
+            for (String t : targets) out.add(batch(t));
+            return out;
+        }
+
+        @Override
+        public int pending() {
+            return 0;
+        }
+
+        // completes inline, like a write the scheduler ran at once
+        private JournalSync.Batch batch(String target) {
+            return new JournalSync.Batch() {
+                @Override
+                public String target() {
+                    return target;
+                }
+
+                @Override
+                public int rows() {
+                    return 1;
+                }
+
+                @Override
+                public boolean submit(Consumer<Boolean> done) {
+                    synchronized (submitted) {
+                        submitted.add(target);
+                    }
+                    done.accept(!target.equals(failing));
+                    return true;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class KeyMaterialCacheTest {
+    @Test
+    public void sessionKeyIsReusedUntilItExpires() throws Exception {
+        KeyMaterialCache cache = new KeyMaterialCache(60_000);
+        KeyMaterialCache.SessionKey a = cache.sessionKey("secret");
+        KeyMaterialCache.SessionKey b = cache.sessionKey("secret");
+        assertArrayEquals(a.salt, b.salt);
+        assertArrayEquals(a.key.getEncoded(), b.key.getEncoded());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expiredSessionGetsAFreshSaltAndKey() throws Exception {
+        KeyMaterialCache cache = new KeyMaterialCache(0);
+        KeyMaterialCache.SessionKey a = cache.sessionKey("secret");
+        Thread.sleep(2);
+        KeyMaterialCache.SessionKey b = cache.sessionKey("secret");
+        assertFalse(Arrays.equals(a.salt, b.salt));
+        assertFalse(Arrays.equals(a.key.getEncoded(), b.key.getEncoded()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void explicitSaltMatchesTheDerivation() throws Exception {
+        KeyMaterialCache cache = new KeyMaterialCache();
+        KeyMaterialCache.SessionKey session = cache.sessionKey("secret");
+        assertArrayEquals(HiposCrypto.deriveKeyBytes("secret", session.salt),
+                cache.key("secret", session.salt).getEncoded());
+        assertArrayEquals(cache.key("secret", session.salt).getEncoded(), session.key.getEncoded());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void passphrasesDoNotShareEntries() throws Exception {
+        KeyMaterialCache cache = new KeyMaterialCache();
+        byte[] salt = HiposCrypto.randomBytes(HiposCrypto.SALT_BYTES);
+        assertFalse(Arrays.equals(cache.key("one", salt).getEncoded(), cache.key("two", salt).getEncoded()));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void wipeDropsEveryKey() throws Exception {
+        KeyMaterialCache cache = new KeyMaterialCache();
+        KeyMaterialCache.SessionKey before = cache.sessionKey("secret");
+        cache.key("secret", HiposCrypto.randomBytes(HiposCrypto.SALT_BYTES));
+        cache.wipe();
+        assertEquals(0, cache.size());
+        // the next write starts a new session
+        assertFalse(Arrays.equals(before.salt, cache.sessionKey("secret").salt));
+    }
+}
@@ -0,0 +1,165 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PartitionerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final SmbTarget TARGET = SmbTarget.parse("smb://nas/share/sede/checkins.csv");
+    private static final LocalDate DAY = LocalDate.of(2026, 10, 18);
+
+    private Path root;
+    private ShareFs fs;
+    private RowCommitter committer;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder().toPath();
+        Files.createDirectories(root.resolve("sede/checkins"));
+        fs = new LocalShareFs(root);
+        committer = new RowCommitter(new WriterMetrics(), new KeyMaterialCache(), alias -> null,
+                new Partitioner(), (msg, e) -> { });
+    }
+
+    @Test
+    public void dayOfReadsTheCreatedAtColumn() {
+        String utc = "2026-10-18T22:30:00Z";
+        assertEquals(Instant.parse(utc).atZone(ZoneId.systemDefault()).toLocalDate(),
+                Partitioner.dayOf(RowCommitterTest.row(utc)));
+        String offset = "2026-10-18T23:30:00+02:00";
+        assertEquals(OffsetDateTime.parse(offset).atZoneSameInstant(ZoneId.systemDefault()).toLocalDate(),
+                Partitioner.dayOf(RowCommitterTest.row(offset)));
+        assertEquals(DAY, Partitioner.dayOf(RowCommitterTest.row("2026-10-18 09:15:00")));
+        assertEquals(DAY, Partitioner.dayOf(RowCommitterTest.row(" 2026-10-18 ")));
+    }
+
+    @Test
+    public void dayOfFallsBackToTodayWhenCreatedAtIsNotADate() {
+        List<CsvCodec.Row> rows = Arrays.asList(RowCommitterTest.row(""), RowCommitterTest.row("ayer"),
+                RowCommitterTest.row("18/10/2026"), CsvCodec.Row.of());
+        for (CsvCodec.Row row : rows) {
+            LocalDate before = LocalDate.now();
+            LocalDate day = Partitioner.dayOf(row);
+            assertFalse(day.isBefore(before) || day.isAfter(LocalDate.now()));
+        }
+    }
+
+    @Test
+    public void byDayGroupsRowIndexesInOrderOfFirstAppearance() {
+        List<CsvCodec.Row> rows = Arrays.asList(
+                RowCommitterTest.row("2026-10-18 23:59:00"),
+                RowCommitterTest.row("2026-10-19 00:01:00"),
+                RowCommitterTest.row("2026-10-18 23:59:30"));
+        Map<LocalDate, List<Integer>> days = Partitioner.byDay(rows);
+        assertEquals(Arrays.asList(DAY, DAY.plusDays(1)), Arrays.asList(days.keySet().toArray()));
+        assertEquals(Arrays.asList(0, 2), days.get(DAY));
+        assertEquals(Arrays.asList(1), days.get(DAY.plusDays(1)));
+    }
+
+    @Test
+    public void resolveRollsToTheNextPartAtTheSizeLimit() throws Exception {
+        Partitioner p = new Partitioner();
+        SmbTarget base = Partitioner.base(TARGET, DAY);
+        assertEquals("sede/checkins/2026-10-18.csv", base.relPath);
+        SmbTarget first = p.resolve(fs, new ShareMetadata(), base, "u", "p", 100);
+        assertEquals(base.relPath, first.relPath);
+        p.committed(base, first, 1, 100, false);
+        assertEquals("sede/checkins/2026-10-18.part2.csv",
+                p.resolve(fs, new ShareMetadata(), base, "u", "p", 100).relPath);
+    }
+
+    @Test
+    public void devicesAddToEachOthersCounts() throws Exception {
+        SmbTarget base = Partitioner.base(TARGET, DAY);
+        Partitioner a = device(base, 2, 200);
+        Partitioner b = device(base, 3, 300);
+        save(a);
+        save(b);
+        List<String> lines = manifest();
+        assertEquals(String.join(",", Partitioner.MANIFEST_COLUMNS), lines.get(0));
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1).startsWith("2026-10-18.csv,5,500,"));
+        assertNoLeftovers();
+    }
+
+    @Test
+    public void rewrittenFileReplacesTheByteCount() throws Exception {
+        SmbTarget base = Partitioner.base(TARGET, DAY);
+        save(device(base, 2, 200));
+        Partitioner p = new Partitioner();
+        SmbTarget written = p.resolve(fs, new ShareMetadata(), base, "u", "p", 0);
+        p.committed(base, written, 1, 250, true);
+        save(p);
+        assertTrue(manifest().get(1).startsWith("2026-10-18.csv,3,250,"));
+    }
+
+    @Test
+    public void saveWaitsForAnotherDevicesLock() throws Exception {
+        SmbTarget base = Partitioner.base(TARGET, DAY);
+        Partitioner p = device(base, 2, 200);
+        Map.Entry<Partitioner.Manifest, Map<String, Partitioner.ManifestEntry>> dirty = p.takeDirty().get(0);
+        String lockPath = dirty.getKey().target.relPath + Partitioner.LOCK_SUFFIX;
+        try (ShareFs.Handle held = fs.open(lockPath, ShareFs.Mode.CREATE)) {
+            held.deleteOnClose();
+            try {
+                Partitioner.save(fs, committer, dirty.getKey(), dirty.getValue());
+                fail("the lock is held");
+            } catch (RuntimeException expected) {
+                p.restore(dirty.getKey(), dirty.getValue());
+            }
+        }
+        assertFalse(Files.exists(root.resolve("sede/checkins/" + Partitioner.MANIFEST)));
+        p.committed(base, base, 1, 100, false);
+        save(p);
+        assertTrue(manifest().get(1).startsWith("2026-10-18.csv,3,300,"));
+        assertNoLeftovers();
+    }
+
+    // A partitioner that wrote rows/bytes to base since its last save
+    private Partitioner device(SmbTarget base, int rows, long bytes) throws Exception {
+        Partitioner p = new Partitioner();
+        SmbTarget written = p.resolve(fs, new ShareMetadata(), base, "u", "p", 0);
+        p.committed(base, written, rows, bytes, false);
+        return p;
+    }
+
+    private void save(Partitioner p) throws Exception {
+        List<Map.Entry<Partitioner.Manifest, Map<String, Partitioner.ManifestEntry>>> dirty = p.takeDirty();
+        assertEquals(1, dirty.size());
+        Partitioner.save(fs, committer, dirty.get(0).getKey(), dirty.get(0).getValue());
+        assertTrue(p.takeDirty().isEmpty());
+    }
+
+    private List<String> manifest() throws Exception {
+        byte[] bytes = Files.readAllBytes(root.resolve("sede/checkins/" + Partitioner.MANIFEST));
+        return Arrays.asList(new String(bytes, StandardCharsets.UTF_8).split("\n"));
+    }
+
+    // no lock or temporary file is left next to the manifest
+    private void assertNoLeftovers() throws Exception {
+        try (Stream<Path> files = Files.list(root.resolve("sede/checkins"))) {
+            assertEquals(1, files.count());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.protocol.transport.TransportException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.security.InvalidKeyException;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+    @Test
+    public void authPermissionAndPathErrorsAreFatal() {
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(smb(NtStatus.STATUS_LOGON_FAILURE)));
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(smb(NtStatus.STATUS_ACCESS_DENIED)));
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(smb(NtStatus.STATUS_BAD_NETWORK_NAME)));
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(smb(NtStatus.STATUS_DISK_FULL)));
+    }
+
+    @Test
+    public void lockedFilesAreContention() {
+        assertEquals(RetryPolicy.Kind.CONTENTION, RetryPolicy.classify(smb(NtStatus.STATUS_SHARING_VIOLATION)));
+        assertEquals(RetryPolicy.Kind.CONTENTION, RetryPolicy.classify(smb(NtStatus.STATUS_FILE_LOCK_CONFLICT)));
+        assertEquals(RetryPolicy.Kind.CONTENTION, RetryPolicy.classify(smb(NtStatus.STATUS_OBJECT_NAME_COLLISION)));
+    }
+
+    @Test
+    public void otherStatusesAndNetworkErrorsAreTransient() {
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.classify(smb(NtStatus.STATUS_NETWORK_NAME_DELETED)));
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.classify(new TransportException("reset")));
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.classify(new SocketTimeoutException()));
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.classify(new IOException("unknown")));
+        assertEquals(RetryPolicy.Kind.TRANSIENT, RetryPolicy.classify((NtStatus) null));
+    }
+
+    @Test
+    public void causesAreUnwrapped() {
+        Exception wrapped = new RuntimeException("write failed", new IOException("io", smb(NtStatus.STATUS_ACCESS_DENIED)));
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(wrapped));
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(new RuntimeException(new InvalidKeyException("bad key"))));
+    }
+
+    @Test
+    public void deniedRenameIsContentionButDeniedOpenIsFatal() {
+        assertEquals(RetryPolicy.Kind.CONTENTION, RetryPolicy.classify(
+                smb(NtStatus.STATUS_ACCESS_DENIED, SMB2MessageCommandCode.SMB2_SET_INFO)));
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(
+                smb(NtStatus.STATUS_ACCESS_DENIED, SMB2MessageCommandCode.SMB2_CREATE)));
+    }
+
+    @Test
+    public void onlyTransientFailuresOpenTheBreaker() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        for (int i = 0; i < RetryPolicy.BREAKER_THRESHOLD * 2; i++) {
+            policy.onFailure("nas", RetryPolicy.Kind.FATAL);
+            policy.onFailure("nas", RetryPolicy.Kind.CONTENTION);
+        }
+        policy.checkBreaker("nas");
+        assertTrue(policy.breakerStates().isEmpty());
+
+        for (int i = 0; i < RetryPolicy.BREAKER_THRESHOLD; i++) {
+            policy.onFailure("nas", RetryPolicy.Kind.TRANSIENT);
+        }
+        assertEquals("open", policy.breakerStates().get("nas"));
+        try {
+            policy.checkBreaker("nas");
+            fail("breaker should be open");
+        } catch (RetryPolicy.CircuitOpenException expected) {
+            assertTrue(expected.retryAfterMs > 0);
+        }
+    }
+
+    @Test
+    public void openBreakerIsFatal() {
+        assertEquals(RetryPolicy.Kind.FATAL, RetryPolicy.classify(new RetryPolicy.CircuitOpenException("nas", 1000)));
+    }
+
+    private static SMBApiException smb(NtStatus status) {
+        return smb(status, SMB2MessageCommandCode.SMB2_CREATE);
+    }
+
+    private static SMBApiException smb(NtStatus status, SMB2MessageCommandCode command) {
+        return new SMBApiException(status.getValue(), command, null);
+    }
+}
@@ -0,0 +1,131 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RowCommitterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private ShareFs fs;
+    private WriterMetrics metrics;
+    private RowCommitter committer;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder().toPath();
+        fs = new LocalShareFs(root);
+        metrics = new WriterMetrics();
+        committer = new RowCommitter(metrics, new KeyMaterialCache(), alias -> null,
+                new Partitioner(), (msg, e) -> { });
+    }
+
+    @Test
+    public void atomicWritesAppendAndLeaveNothingBehind() throws Exception {
+        WriteOptions o = options("checkins.csv");
+        commit(o, row("a"));
+        commit(o, row("b"));
+        List<String> lines = lines("checkins.csv");
+        assertEquals(3, lines.size());
+        assertEquals("a", lines.get(1).split(",")[0]);
+        assertEquals("b", lines.get(2).split(",")[0]);
+        try (Stream<Path> files = Files.list(root)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void atomicWriteWaitsForAnotherWritersLock() throws Exception {
+        WriteOptions o = options("checkins.csv");
+        commit(o, row("a"));
+        try (ShareFs.Handle held = fs.open("checkins.csv" + Partitioner.LOCK_SUFFIX, ShareFs.Mode.CREATE)) {
+            held.deleteOnClose();
+            try {
+                commit(o, row("b"));
+                fail("the lock is held");
+            } catch (RuntimeException expected) {
+                // CREATE on an existing lock file: a name collision on SMB
+            }
+        }
+        assertEquals(2, lines("checkins.csv").size());
+        assertFalse(Files.exists(root.resolve("checkins.csv" + Partitioner.LOCK_SUFFIX)));
+        commit(o, row("b"));
+        assertEquals(3, lines("checkins.csv").size());
+    }
+
+    @Test
+    public void appendToADeletedFileStartsWithTheHeader() throws Exception {
+        WriteOptions o = options("checkins.csv");
+        o.atomic = false;
+        ShareMetadata meta = new ShareMetadata();
+        commit(o, meta, row("a"));
+        // rotated away by someone else while the cache still says it exists
+        Files.delete(root.resolve("checkins.csv"));
+        commit(o, meta, row("b"));
+        List<String> lines = lines("checkins.csv");
+        assertEquals(2, lines.size());
+        assertEquals(String.join(",", XlsxAppender.COLUMNS), lines.get(0));
+    }
+
+    @Test
+    public void atomicWriteToAnEmptiedFileStartsWithTheHeader() throws Exception {
+        WriteOptions o = options("checkins.csv");
+        ShareMetadata meta = new ShareMetadata();
+        commit(o, meta, row("a"));
+        Files.write(root.resolve("checkins.csv"), new byte[0]);
+        commit(o, meta, row("b"));
+        List<String> lines = lines("checkins.csv");
+        assertEquals(2, lines.size());
+        assertEquals(String.join(",", XlsxAppender.COLUMNS), lines.get(0));
+    }
+
+    @Test
+    public void v3SealIsRecordedAsEncryption() throws Exception {
+        WriteOptions o = options("checkins.csv.enc");
+        o.atomic = false;
+        o.encrypt = true;
+        o.encFormat = 3;
+        o.passphrase = "secret";
+        commit(o, row("a"));
+        commit(o, row("b"));
+        assertEquals(2, metrics.histogram(WriterMetrics.ENCRYPT).count());
+    }
+
+    private void commit(WriteOptions o, CsvCodec.Row... rows) throws Exception {
+        commit(o, new ShareMetadata(), rows);
+    }
+
+    private void commit(WriteOptions o, ShareMetadata meta, CsvCodec.Row... rows) throws Exception {
+        try (RowCommitter.Prepared p = new RowCommitter.Prepared()) {
+            committer.commit(fs, meta, SmbTarget.parse(o.url), Arrays.asList(rows), o, p);
+        }
+    }
+
+    private List<String> lines(String path) throws Exception {
+        return Arrays.asList(new String(Files.readAllBytes(root.resolve(path)), StandardCharsets.UTF_8).split("\n"));
+    }
+
+    static WriteOptions options(String path) {
+        WriteOptions o = new WriteOptions();
+        o.url = "smb://nas/share/" + path;
+        return o;
+    }
+
+    static CsvCodec.Row row(String createdAt) {
+        return CsvCodec.Row.of(createdAt, "Ana", "600000000", "a@b.es", "28001", "Madrid", "Mayor 1", "visita");
+    }
+}
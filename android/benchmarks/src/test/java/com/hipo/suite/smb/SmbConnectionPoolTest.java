@@ -0,0 +1,168 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SmbConnectionPoolTest {
+    private final FakeConnector connector = new FakeConnector();
+    private final SmbConnectionPool pool = new SmbConnectionPool(SmbConnectionPool.DEFAULT_IDLE_TIMEOUT_MS, connector);
+
+    @After
+    public void close() {
+        pool.close();
+    }
+
+    @Test
+    public void leasesReuseOneShare() throws Exception {
+        try (SmbConnectionPool.Lease a = pool.acquire("nas", "data", "u", "p");
+             SmbConnectionPool.Lease b = pool.acquire("nas", "data", "u", "p")) {
+            assertEquals(1, connector.links.size());
+        }
+        pool.acquire("nas", "data", "u", "p").close();
+        assertEquals(1, connector.links.size());
+        assertEquals(2L, (long) pool.stats().get("hits"));
+        assertEquals(1L, (long) pool.stats().get("misses"));
+    }
+
+    @Test
+    public void invalidatedShareClosesAfterItsLastLease() throws Exception {
+        SmbConnectionPool.Lease a = pool.acquire("nas", "data", "u", "p");
+        SmbConnectionPool.Lease b = pool.acquire("nas", "data", "u", "p");
+        FakeLink first = connector.links.get(0);
+
+        a.invalidate(false);
+        a.close();
+        assertNull("b still uses the share", first.closedForced);
+
+        SmbConnectionPool.Lease c = pool.acquire("nas", "data", "u", "p");
+        assertEquals(2, connector.links.size());
+        b.close();
+        assertEquals(Boolean.FALSE, first.closedForced);
+        c.close();
+        assertNull(connector.links.get(1).closedForced);
+    }
+
+    @Test
+    public void transportFailureForcesTheConnectionClosed() throws Exception {
+        try (SmbConnectionPool.Lease a = pool.acquire("nas", "data", "u", "p")) {
+            a.invalidate(true);
+        }
+        assertEquals(Boolean.TRUE, connector.links.get(0).closedForced);
+    }
+
+    @Test
+    public void unhealthyShareIsReplacedOnAcquire() throws Exception {
+        pool.acquire("nas", "data", "u", "p").close();
+        connector.links.get(0).healthy = false;
+        pool.acquire("nas", "data", "u", "p").close();
+        assertEquals(Boolean.TRUE, connector.links.get(0).closedForced);
+        assertEquals(2, connector.links.size());
+        assertEquals(1L, (long) pool.stats().get("reconnects"));
+    }
+
+    @Test
+    public void passwordChangeReconnectsWithoutForcing() throws Exception {
+        pool.acquire("nas", "data", "u", "old").close();
+        pool.acquire("nas", "data", "u", "new").close();
+        assertEquals(Boolean.FALSE, connector.links.get(0).closedForced);
+        assertEquals("new", new String(connector.links.get(1).pass));
+    }
+
+    @Test
+    public void failedConnectIsNotPooled() throws Exception {
+        connector.fail = true;
+        try {
+            pool.acquire("nas", "data", "u", "p");
+            fail("connect should fail");
+        } catch (IOException expected) {
+            // the connector gives its own resources back
+        }
+        connector.fail = false;
+        pool.acquire("nas", "data", "u", "p").close();
+        assertEquals(1, connector.links.size());
+    }
+
+    @Test
+    public void idleSharesAreEvictedButLeasedOnesStay() throws Exception {
+        SmbConnectionPool idlePool = new SmbConnectionPool(1, connector);
+        try {
+            idlePool.acquire("nas", "idle", "u", "p").close();
+            SmbConnectionPool.Lease busy = idlePool.acquire("nas", "busy", "u", "p");
+            Thread.sleep(5);
+            idlePool.evictIdle();
+            assertEquals(Boolean.FALSE, connector.links.get(0).closedForced);
+            assertNull(connector.links.get(1).closedForced);
+            assertEquals(1L, (long) idlePool.stats().get("evictions"));
+            assertEquals(1L, (long) idlePool.stats().get("open"));
+            busy.close();
+        } finally {
+            idlePool.close();
+        }
+        assertEquals(Boolean.FALSE, connector.links.get(1).closedForced);
+    }
+
+    @Test
+    public void closeReleasesEveryShareAndTheConnector() throws Exception {
+        pool.acquire("nas", "a", "u", "p").close();
+        pool.acquire("nas", "b", "u", "p").close();
+        pool.close();
+        for (FakeLink l : connector.links) assertEquals(Boolean.FALSE, l.closedForced);
+        assertTrue(connector.closed);
+    }
+
+    private static final class FakeConnector implements SmbConnectionPool.Connector {
+        final List<FakeLink> links = new ArrayList<>();
+        boolean fail;
+        boolean closed;
+
+        @Override
+        public SmbConnectionPool.Link connect(String host, String share, String user, char[] pass) throws IOException {
+            if (fail) throw new IOException("connection refused");
+            FakeLink l = new FakeLink(pass);
+            links.add(l);
+            return l;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static final class FakeLink implements SmbConnectionPool.Link {
+        final char[] pass;
+        boolean healthy = true;
+        // null while open, else whether the close was forced
+        Boolean closedForced;
+
+        FakeLink(char[] pass) {
+            this.pass = pass;
+        }
+
+        @Override
+        public ShareFs fs() {
+            return null;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return healthy && closedForced == null;
+        }
+
+        @Override
+        public void close(boolean force) {
+            assertFalse("closed twice", closedForced != null);
+            closedForced = force;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteJournalTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void pendingRecordsSurviveReopen() throws Exception {
+        File dir = tmp.newFolder();
+        try (WriteJournal j = new WriteJournal(dir)) {
+            j.append(bytes("a"));
+            j.append(bytes("b"));
+        }
+        try (WriteJournal j = new WriteJournal(dir)) {
+            List<WriteJournal.Record> pending = j.pending();
+            assertEquals(2, pending.size());
+            assertArrayEquals(bytes("a"), pending.get(0).payload);
+            assertArrayEquals(bytes("b"), pending.get(1).payload);
+        }
+    }
+
+    @Test
+    public void tornTailIsDroppedOnRecovery() throws Exception {
+        File dir = tmp.newFolder();
+        long second;
+        try (WriteJournal j = new WriteJournal(dir)) {
+            j.append(bytes("a"));
+            second = j.append(bytes("b"));
+        }
+        // a crash mid-append: a header promising more payload than was written
+        File segment = segments(dir)[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(raf.length());
+            raf.write(ByteBuffer.allocate(20).putInt(100).putInt(0).putLong(second + 1).array());
+        }
+        long lengthBefore = segment.length();
+        try (WriteJournal j = new WriteJournal(dir)) {
+            assertEquals(2, j.pendingCount());
+            assertTrue(segment.length() < lengthBefore);
+            assertEquals(second + 1, j.append(bytes("c")));
+        }
+        try (WriteJournal j = new WriteJournal(dir)) {
+            assertEquals(3, j.pendingCount());
+            assertArrayEquals(bytes("c"), j.pending().get(2).payload);
+        }
+    }
+
+    @Test
+    public void corruptRecordEndsTheSegment() throws Exception {
+        File dir = tmp.newFolder();
+        try (WriteJournal j = new WriteJournal(dir)) {
+            j.append(bytes("a"));
+            j.append(bytes("b"));
+        }
+        File segment = segments(dir)[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            // flip a payload byte of the last record so its CRC no longer matches
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 1);
+        }
+        try (WriteJournal j = new WriteJournal(dir)) {
+            assertEquals(1, j.pendingCount());
+            assertArrayEquals(bytes("a"), j.pending().get(0).payload);
+        }
+    }
+
+    @Test
+    public void ackedRecordsStayAcked() throws Exception {
+        File dir = tmp.newFolder();
+        long a, b, c;
+        try (WriteJournal j = new WriteJournal(dir)) {
+            a = j.append(bytes("a"));
+            b = j.append(bytes("b"));
+            c = j.append(bytes("c"));
+            j.ack(Arrays.asList(a, c));
+            assertEquals(1, j.pendingCount());
+        }
+        try (WriteJournal j = new WriteJournal(dir)) {
+            List<WriteJournal.Record> pending = j.pending();
+            assertEquals(1, pending.size());
+            assertEquals(b, pending.get(0).seq);
+        }
+    }
+
+    @Test
+    public void fullyAckedSegmentsAreDeleted() throws Exception {
+        File dir = tmp.newFolder();
+        try (WriteJournal j = new WriteJournal(dir, 64)) {
+            long first = j.append(new byte[80]);
+            j.append(new byte[80]);
+            assertEquals(2, j.segmentCount());
+            j.ack(Arrays.asList(first));
+            assertEquals(1, j.segmentCount());
+        }
+        assertEquals(1, segments(dir).length);
+    }
+
+    @Test
+    public void staleAckLogNeverHidesNewRecords() throws Exception {
+        File dir = tmp.newFolder();
+        // the segments are gone but the ack log was not rewritten (crash mid-compaction)
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "acks.log"), "rw")) {
+            raf.write(ByteBuffer.allocate(16).putLong(1).putLong(2).array());
+        }
+        long seq;
+        try (WriteJournal j = new WriteJournal(dir)) {
+            assertEquals(0, j.pendingCount());
+            seq = j.append(bytes("new"));
+            assertTrue(seq > 2);
+        }
+        try (WriteJournal j = new WriteJournal(dir)) {
+            List<WriteJournal.Record> pending = j.pending();
+            assertEquals(1, pending.size());
+            assertEquals(seq, pending.get(0).seq);
+        }
+    }
+
+    private static File[] segments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
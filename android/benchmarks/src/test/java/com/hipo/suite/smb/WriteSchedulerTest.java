@@ -0,0 +1,149 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WriteSchedulerTest {
+    private final WriteScheduler scheduler = new WriteScheduler(4, 100);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void writesToOneTargetRunInSubmissionOrder() throws Exception {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlap = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            final int n = i;
+            assertTrue(scheduler.submit("smb://nas/share/a.csv", () -> {
+                if (running.incrementAndGet() > 1) overlap.incrementAndGet();
+                order.add(n);
+                running.decrementAndGet();
+                done.countDown();
+            }, null));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlap.get());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void differentTargetsRunInParallel() throws Exception {
+        CountDownLatch bStarted = new CountDownLatch(1);
+        CountDownLatch aDone = new CountDownLatch(1);
+        // a waits for b: this only finishes if b does not queue behind a
+        scheduler.submit("a", () -> {
+            try {
+                if (bStarted.await(10, TimeUnit.SECONDS)) aDone.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, null);
+        scheduler.submit("b", bStarted::countDown, null);
+        assertTrue(aDone.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelDropsQueuedWritesButNotTheRunningOne() throws Exception {
+        CountDownLatch headStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch headDone = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        AtomicInteger cancelled = new AtomicInteger();
+        scheduler.submit("a", () -> {
+            headStarted.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            headDone.countDown();
+        }, cancelled::incrementAndGet);
+        assertTrue(headStarted.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit("a", ran::incrementAndGet, cancelled::incrementAndGet);
+        }
+        assertEquals(4, scheduler.depth());
+
+        assertEquals(3, scheduler.cancelPending("a"));
+        assertEquals(3, cancelled.get());
+        release.countDown();
+        assertTrue(headDone.await(10, TimeUnit.SECONDS));
+
+        // the next write to the target still runs once the head is done
+        CountDownLatch next = new CountDownLatch(1);
+        scheduler.submit("a", next::countDown, null);
+        assertTrue(next.await(10, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+    }
+
+    @Test
+    public void submitIsRefusedWhenTheQueueIsFull() throws Exception {
+        WriteScheduler small = new WriteScheduler(1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        try {
+            Runnable block = () -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            };
+            assertTrue(small.submit("a", block, null));
+            assertTrue(small.submit("a", block, null));
+            assertFalse(small.submit("b", block, null));
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            small.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownCancelsQueuedWrites() throws Exception {
+        WriteScheduler s = new WriteScheduler(1, 10);
+        CountDownLatch headStarted = new CountDownLatch(1);
+        CountDownLatch headDone = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        AtomicInteger cancelled = new AtomicInteger();
+        s.submit("a", () -> {
+            headStarted.countDown();
+            try {
+                new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // shutdown interrupts the running write
+                Thread.currentThread().interrupt();
+            }
+            headDone.countDown();
+        }, cancelled::incrementAndGet);
+        assertTrue(headStarted.await(10, TimeUnit.SECONDS));
+        s.submit("a", ran::incrementAndGet, cancelled::incrementAndGet);
+        s.submit("b", ran::incrementAndGet, cancelled::incrementAndGet);
+
+        s.shutdown();
+        assertEquals(2, cancelled.get());
+        assertTrue(headDone.await(10, TimeUnit.SECONDS));
+        assertFalse(s.submit("c", ran::incrementAndGet, null));
+        assertEquals(0, ran.get());
+    }
+}
@@ -0,0 +1,92 @@
+package com.hipo.suite.smb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XlsxAppenderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private ShareFs fs;
+    private ShareMetadata meta;
+    private RowCommitter committer;
+    private WriteOptions o;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder().toPath();
+        fs = new LocalShareFs(root);
+        meta = new ShareMetadata();
+        committer = new RowCommitter(new WriterMetrics(), new KeyMaterialCache(), alias -> null,
+                new Partitioner(), (msg, e) -> { });
+        o = RowCommitterTest.options("checkins.xlsx");
+        o.protectExcel = true;
+        o.excelMaxRows = 3;
+    }
+
+    @Test
+    public void batchLargerThanTheRoomLeftSpillsIntoTheNextPart() throws Exception {
+        commit(0, 2);
+        commit(2, 4);
+        assertArrayEquals(new String[]{"r0", "r1", "r2"}, dataRows("checkins.xlsx"));
+        assertArrayEquals(new String[]{"r3", "r4", "r5"}, dataRows("checkins.part2.xlsx"));
+        commit(6, 1);
+        assertArrayEquals(new String[]{"r6"}, dataRows("checkins.part3.xlsx"));
+    }
+
+    @Test
+    public void batchSpanningSeveralPartsFillsEachToTheLimit() throws Exception {
+        commit(0, 7);
+        assertArrayEquals(new String[]{"r0", "r1", "r2"}, dataRows("checkins.xlsx"));
+        assertArrayEquals(new String[]{"r3", "r4", "r5"}, dataRows("checkins.part2.xlsx"));
+        assertArrayEquals(new String[]{"r6"}, dataRows("checkins.part3.xlsx"));
+        assertFalse(Files.exists(root.resolve("checkins.part4.xlsx")));
+    }
+
+    @Test
+    public void unreadablePartIsLeftAloneAndRowsGoToTheNextOne() throws Exception {
+        byte[] foreign = "not a workbook".getBytes("UTF-8");
+        Files.write(root.resolve("checkins.xlsx"), foreign);
+        commit(0, 1);
+        assertArrayEquals(foreign, Files.readAllBytes(root.resolve("checkins.xlsx")));
+        assertArrayEquals(new String[]{"r0"}, dataRows("checkins.part2.xlsx"));
+    }
+
+    private void commit(int first, int count) throws Exception {
+        List<CsvCodec.Row> rows = new ArrayList<>();
+        for (int i = first; i < first + count; i++) rows.add(RowCommitterTest.row("r" + i));
+        try (RowCommitter.Prepared p = new RowCommitter.Prepared()) {
+            committer.commit(fs, meta, SmbTarget.parse(o.url), rows, o, p);
+        }
+    }
+
+    // created_at of every data row in the part
+    private String[] dataRows(String path) throws Exception {
+        try (InputStream is = Files.newInputStream(root.resolve(path));
+             Workbook wb = WorkbookFactory.create(is)) {
+            Sheet sheet = wb.getSheetAt(0);
+            assertEquals("created_at", sheet.getRow(0).getCell(0).getStringCellValue());
+            String[] out = new String[sheet.getLastRowNum()];
+            for (int i = 1; i <= sheet.getLastRowNum(); i++) {
+                out[i - 1] = sheet.getRow(i).getCell(0).getStringCellValue();
+            }
+            return out;
+        }
+    }
+}
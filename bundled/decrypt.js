@@ -8,6 +8,55 @@ function prompt(question) {
   return new Promise(resolve => rl.question(question, ans => { rl.close(); resolve(ans); }));
 }
 
+// v3 container: header(32) | frames [len(4) | iv(12) | ct+tag] | footer(20)
+// With fixed frames (flag 0x02) every frame but the last holds frameBytes of plaintext,
+// so offsets follow from the frame count; a "HIPOTAL3" footer points at a saved copy of
+// the last frame (an append was interrupted). Older files keep a frame index before the
+// footer. Frames are found by scanning when the footer is damaged.
+function decryptV3(raw, pass) {
+  const header = raw.slice(0, 32);
+  if (!(raw[9] & 0x01)) throw new Error('Version 3 KeyStore file cannot be decrypted outside device. Use passphrase mode.');
+  const fixed = (raw[9] & 0x02) !== 0;
+  const frameBytes = raw.readUInt32BE(12);
+  const salt = raw.slice(16, 32);
+  const key = crypto.pbkdf2Sync(pass, salt, 100000, 32, 'sha256');
+  const offsets = [];
+  const magic = raw.length >= 52 ? raw.slice(raw.length - 8).toString('ascii') : '';
+  if (magic === 'HIPOIDX3' || (fixed && magic === 'HIPOTAL3')) {
+    const at = Number(raw.readBigUInt64BE(raw.length - 20));
+    const count = raw.readUInt32BE(raw.length - 12);
+    for (let i = 0; i < count; i++) {
+      if (!fixed) offsets.push(Number(raw.readBigUInt64BE(at + i * 12)));
+      else if (magic === 'HIPOTAL3' && i === count - 1) offsets.push(at);
+      else offsets.push(32 + i * (32 + frameBytes));
+    }
+  } else {
+    console.error('Warning: footer missing or damaged, scanning frames');
+    let pos = 32;
+    while (pos + 32 <= raw.length) {
+      const len = raw.readUInt32BE(pos);
+      if (len < 16 || len > frameBytes + 16 || pos + 16 + len > raw.length) break;
+      offsets.push(pos);
+      pos += 16 + len;
+      if (fixed && len - 16 < frameBytes) break;
+    }
+  }
+  const parts = offsets.map((off, i) => {
+    const len = raw.readUInt32BE(off);
+    const iv = raw.slice(off + 4, off + 16);
+    const ct = raw.slice(off + 16, off + 16 + len - 16);
+    const tag = raw.slice(off + 16 + len - 16, off + 16 + len);
+    const aad = Buffer.alloc(40);
+    header.copy(aad, 0);
+    aad.writeBigUInt64BE(BigInt(i), 32);
+    const decipher = crypto.createDecipheriv('aes-256-gcm', key, iv);
+    decipher.setAAD(aad);
+    decipher.setAuthTag(tag);
+    return Buffer.concat([decipher.update(ct), decipher.final()]);
+  });
+  return Buffer.concat(parts);
+}
+
 async function main() {
   const argv = process.argv.slice(2);
   if (argv.length < 2) {
@@ -28,6 +77,17 @@ async function main() {
     console.error('Version 1 (KeyStore) cannot be decrypted outside device. Use passphrase mode.');
     process.exit(4);
   }
+  if (ver === 3) {
+    if (!pass) pass = await prompt('Passphrase: ');
+    try {
+      fs.writeFileSync(outPath, decryptV3(raw, pass));
+      console.log('Decrypted to', outPath);
+    } catch (e) {
+      console.error('Decrypt failed:', e.message);
+      process.exit(6);
+    }
+    return;
+  }
   if (ver !== 2) { console.error('Unsupported version', ver); process.exit(5); }
   const salt = raw.slice(9, 25); // 16 bytes
   const iv = raw.slice(25, 37); // 12 bytes
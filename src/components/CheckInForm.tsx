@@ -1,7 +1,7 @@
 import React, { useState, useEffect } from 'react';
 // GuestDataContext and AuthContext removed — use local no-op handlers instead
-import { enqueueCheckin, processQueue, appendAccessLog } from '../utils/offlineQueue';
-import { sendToSmb, sendToSmbNative } from '../services/smb';
+import { enqueueCheckin, processQueueBatch, appendAccessLog } from '../utils/offlineQueue';
+import { enqueueToSmbNative, sendBatchToSmb, sendToSmbNative } from '../services/smb';
 
 interface Labels {
   nombre: string;
@@ -115,7 +115,8 @@ const CheckInForm: React.FC<{ labels?: Partial<Labels> }> = ({ labels }) => {
   if (!saved) {
       try {
         const rec = payload;
-        const enqOk = enqueueCheckin(rec as any);
+        // prefer the native journal (durable, no expiry); fall back to localStorage
+        const enqOk = (await enqueueToSmbNative(rec as any)) || enqueueCheckin(rec as any);
         if (enqOk) {
       try { appendAccessLog({ ts: new Date().toISOString(), nombre: rec.nombre, motivo: rec.motivo }); } catch(e){}
           try { alert(navigator.language.startsWith('es') ? 'Guardado en cola local. Se reintentará cuando haya red.' : 'Saved to local queue. Will retry when online.'); } catch(e){}
@@ -162,7 +163,7 @@ const CheckInForm: React.FC<{ labels?: Partial<Labels> }> = ({ labels }) => {
     let mounted = true;
     async function tryFlush() {
       try {
-        const sent = await processQueue(sendToSmb as any);
+        const sent = await processQueueBatch(sendBatchToSmb);
         if (sent > 0) console.debug('flushed', sent);
       } catch (err) {
         console.debug('flush failed', err);
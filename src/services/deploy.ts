@@ -20,7 +20,7 @@ export async function deployBundledFileToSmb(bundledPath: string, destPath: stri
   const encrypt = (localStorage.getItem('excel_smb_encrypt') || 'false') === 'true';
   const keyAlias = localStorage.getItem('excel_smb_key_alias') || 'hipo_smb_key';
   const passphrase = localStorage.getItem('excel_smb_passphrase') || '';
-  await Plugins.SmbWriter.writeLine({ url: destPath, user: localStorage.getItem('excel_smb_user') || '', pass: localStorage.getItem('excel_smb_pass') || '', line: text, retries, retryDelayMs, atomic, encrypt, keyAlias });
+  await Plugins.SmbWriter.writeLine({ url: destPath, user: localStorage.getItem('excel_smb_user') || '', pass: localStorage.getItem('excel_smb_pass') || '', line: text, retries, retryDelayMs, atomic, encrypt, keyAlias, audit: false });
         return true;
       }
     } catch (err) {
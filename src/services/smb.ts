@@ -1,5 +1,7 @@
 import { CheckInRecord } from '../utils/offlineQueue';
 
+const looksLikeSmb = (p?: string | null) => !!p && (/^\\\\|^\\\/?|^smb:\/\//i.test(p) || p.includes('\\'));
+
 /**
  * sendToSmb - best-effort function that tries to persist a single checkin.
  * Current strategy: if an "excel_server_url" is configured, POST to it.
@@ -10,7 +12,6 @@ export async function sendToSmb(rec: CheckInRecord): Promise<boolean> {
   const excelServerPath = (() => { try { return localStorage.getItem('excel_server_path'); } catch { return null; } })();
   const excelServerKey = (() => { try { return localStorage.getItem('excel_server_key'); } catch { return null; } })();
   // If the configured path looks like an SMB/UNC path, prefer the native SMB writer.
-  const looksLikeSmb = (p?: string | null) => !!p && (/^\\\\|^\\\/?|^smb:\/\//i.test(p) || p.includes('\\'));
   if (looksLikeSmb(excelServerPath)) {
     // attempt native write
     return await sendToSmbNative(rec);
@@ -29,27 +30,42 @@ export async function sendToSmb(rec: CheckInRecord): Promise<boolean> {
   }
 }
 
-// Placeholder for native SMB plugin call
-export async function sendToSmbNative(rec: CheckInRecord): Promise<boolean> {
-  try {
-    // dynamic import to avoid bundling errors on web
-    const cap = (window as any).Capacitor;
-    if (!cap) return false;
-    const Plugins = (window as any).Plugins || (cap.Plugins || {});
-    if (Plugins && Plugins.SmbWriter && typeof Plugins.SmbWriter.writeLine === 'function') {
-      const smbUrl = localStorage.getItem('excel_server_path') || '';
-      const user = localStorage.getItem('excel_smb_user') || '';
-      const pass = localStorage.getItem('excel_smb_pass') || '';
-      const line = [rec.created_at, rec.nombre, rec.telefono, rec.email, rec.cp, rec.localidad, rec.calleNumero, rec.motivo || ''].join(',');
+// Options shared by writeLine/writeLines, read from the tablet settings
+function readNativeOptions() {
+  const url = localStorage.getItem('excel_server_path') || '';
+  const user = localStorage.getItem('excel_smb_user') || '';
+  const pass = localStorage.getItem('excel_smb_pass') || '';
   const retries = parseInt(localStorage.getItem('excel_smb_retries') || '3', 10) || 3;
   const retryDelayMs = parseInt(localStorage.getItem('excel_smb_retry_delay_ms') || '1000', 10) || 1000;
   const atomic = (localStorage.getItem('excel_smb_atomic') || 'true') === 'true';
   const encrypt = (localStorage.getItem('excel_smb_encrypt') || 'false') === 'true';
   const keyAlias = localStorage.getItem('excel_smb_key_alias') || 'hipo_smb_key';
   const passphrase = localStorage.getItem('excel_smb_passphrase') || '';
-    const protectExcel = (localStorage.getItem('excel_protect_xlsx') || 'false') === 'true';
-    const excelPassword = localStorage.getItem('excel_password') || '';
-    await Plugins.SmbWriter.writeLine({ url: smbUrl, user, pass, line, retries, retryDelayMs, atomic, encrypt, keyAlias, passphrase, protectExcel, excelPassword });
+  const protectExcel = (localStorage.getItem('excel_protect_xlsx') || 'false') === 'true';
+  const excelPassword = localStorage.getItem('excel_password') || '';
+  const partitionByDay = (localStorage.getItem('excel_smb_partition_by_day') || 'false') === 'true';
+  const partitionMaxBytes = Math.max(0, parseInt(localStorage.getItem('excel_smb_partition_max_mb') || '0', 10) || 0) * 1024 * 1024;
+  return { url, user, pass, retries, retryDelayMs, atomic, encrypt, keyAlias, passphrase, protectExcel, excelPassword, partitionByDay, partitionMaxBytes };
+}
+
+// Field values in column order; the native side does the CSV quoting (RFC 4180)
+function toFields(rec: CheckInRecord): string[] {
+  return [rec.created_at, rec.nombre, rec.telefono, rec.email, rec.cp, rec.localidad, rec.calleNumero, rec.motivo || ''].map(v => (v == null ? '' : String(v)));
+}
+
+function nativePlugin() {
+  const cap = (window as any).Capacitor;
+  if (!cap) return null;
+  const Plugins = (window as any).Plugins || (cap.Plugins || {});
+  return Plugins && Plugins.SmbWriter ? Plugins.SmbWriter : null;
+}
+
+// Placeholder for native SMB plugin call
+export async function sendToSmbNative(rec: CheckInRecord): Promise<boolean> {
+  try {
+    const smb = nativePlugin();
+    if (smb && typeof smb.writeLine === 'function') {
+      await smb.writeLine({ ...readNativeOptions(), fields: toFields(rec) });
       return true;
     }
     return false;
@@ -58,3 +74,84 @@ export async function sendToSmbNative(rec: CheckInRecord): Promise<boolean> {
     return false;
   }
 }
+
+/**
+ * enqueueToSmbNative - hand a check-in to the native write-ahead journal.
+ * The record is fsync'd on the device and replayed into the share in the background,
+ * so it survives WebView resets and never expires. Returns false when unavailable.
+ */
+export async function enqueueToSmbNative(rec: CheckInRecord): Promise<boolean> {
+  try {
+    const excelServerPath = localStorage.getItem('excel_server_path');
+    const smb = nativePlugin();
+    if (!looksLikeSmb(excelServerPath) || !smb || typeof smb.enqueue !== 'function') return false;
+    await smb.enqueue({ ...readNativeOptions(), fields: toFields(rec) });
+    return true;
+  } catch (err) {
+    console.debug('enqueueToSmbNative failed', err);
+    return false;
+  }
+}
+
+/**
+ * sendBatchToSmb - batch counterpart of sendToSmb used when draining the queue.
+ * SMB paths go through a single native writeLines call; anything else falls back
+ * to sendToSmb record by record, stopping at the first failure.
+ */
+export async function sendBatchToSmb(recs: CheckInRecord[]): Promise<boolean[]> {
+  const excelServerPath = (() => { try { return localStorage.getItem('excel_server_path'); } catch { return null; } })();
+  const smb = nativePlugin();
+  if (looksLikeSmb(excelServerPath) && smb && typeof smb.writeLines === 'function') {
+    return await sendBatchToSmbNative(recs);
+  }
+  const out = recs.map(() => false);
+  for (let i = 0; i < recs.length; i++) {
+    if (!(await sendToSmb(recs[i]))) break;
+    out[i] = true;
+  }
+  return out;
+}
+
+/**
+ * sendBatchToSmbNative - write several check-ins with a single native call.
+ * Returns one flag per record (true = reached the share).
+ */
+export async function sendBatchToSmbNative(recs: CheckInRecord[]): Promise<boolean[]> {
+  const failed = recs.map(() => false);
+  try {
+    const smb = nativePlugin();
+    if (!smb || typeof smb.writeLines !== 'function' || !recs.length) return failed;
+    const res = await smb.writeLines({ ...readNativeOptions(), records: recs.map(toFields) });
+    const results: { index: number; ok: boolean }[] = (res && res.results) || [];
+    const out = [...failed];
+    for (const r of results) {
+      if (r.index >= 0 && r.index < out.length) out[r.index] = !!r.ok;
+    }
+    return out;
+  } catch (err) {
+    console.debug('sendBatchToSmbNative failed', err);
+    return failed;
+  }
+}
+
+export interface SmbSyncProgress {
+  online: boolean;
+  running: boolean;
+  pending: number;
+  inFlight: number;
+  flushed: number;
+  failed: number;
+  reason: string;
+}
+
+/**
+ * onSmbSyncProgress - follow the native background sync that drains enqueued check-ins.
+ * The listener gets a snapshot after every batch; returns an unsubscribe function
+ * (a no-op when the native plugin is unavailable).
+ */
+export async function onSmbSyncProgress(listener: (p: SmbSyncProgress) => void): Promise<() => void> {
+  const smb = nativePlugin();
+  if (!smb || typeof smb.addListener !== 'function') return () => {};
+  const handle = await smb.addListener('syncProgress', listener);
+  return () => { try { handle.remove(); } catch { /* plugin gone */ } };
+}
@@ -90,6 +90,55 @@ export async function processQueue(sender: (r: CheckInRecord) => Promise<boolean
   return success;
 }
 
+/**
+ * Flush the queue with a batch sender (one call for all pending records).
+ * sender returns one success flag per record; failed records stay queued.
+ */
+export async function processQueueBatch(sender: (r: CheckInRecord[]) => Promise<boolean[]>) {
+  const q = peekQueue();
+  if (!q.length) return 0;
+  let results: boolean[];
+  try {
+    results = await sender(q);
+  } catch (err) {
+    console.error('processQueueBatch failed', err);
+    return 0;
+  }
+  // sent records by identity, counted so identical duplicates are only dropped once each
+  const sent = new Map<string, number>();
+  q.forEach((r, i) => {
+    if (results[i]) sent.set(recordKey(r), (sent.get(recordKey(r)) || 0) + 1);
+  });
+  const success = q.filter((_, i) => results[i]).length;
+  if (success > 0) {
+    try {
+      // re-read the stored queue: records enqueued or expired while the batch was in
+      // flight shift positions, so sent records are removed by identity, not by index
+      const now = Date.now();
+      const stored: CheckInRecord[] = JSON.parse(localStorage.getItem(QUEUE_KEY) || '[]');
+      const remaining = stored.filter(r => {
+        const key = recordKey(r);
+        const n = sent.get(key) || 0;
+        if (n > 0) {
+          sent.set(key, n - 1);
+          return false;
+        }
+        const t = Date.parse(r.created_at || '');
+        return Number.isFinite(t) ? (now - t) <= EXPIRY_MS : true;
+      });
+      localStorage.setItem(QUEUE_KEY, JSON.stringify(remaining));
+    } catch (err) {
+      console.error('processQueueBatch writeback failed', err);
+    }
+  }
+  return success;
+}
+
+// A queued check-in is identified by its creation time and name
+function recordKey(r: CheckInRecord) {
+  return (r.created_at || '') + '\u0000' + (r.nombre || '');
+}
+
 // Access log utilities - append-only log that does not expire here
 export type AccessLogEntry = { ts: string; nombre?: string; motivo?: string; smbUser?: string };
 